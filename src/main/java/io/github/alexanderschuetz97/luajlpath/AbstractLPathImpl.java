@@ -22,20 +22,35 @@ package io.github.alexanderschuetz97.luajlpath;
 import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
 import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.VarArgFunction;
 import org.luaj.vm2.lib.ZeroArgFunction;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -43,9 +58,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.luaj.vm2.LuaValue.*;
 import static org.luaj.vm2.LuaValue.varargsOf;
@@ -100,8 +117,60 @@ public abstract class AbstractLPathImpl {
 
     protected LuaFileSystemHandler handler;
 
+    protected final LPathCopier copier = new LPathCopier();
+
+    protected final LPathWorkerPool workers = new LPathWorkerPool();
+
+    protected final LPathRemover remover = new LPathRemover();
+
+    protected final LPathTrash trash = new LPathTrash();
+
+    protected final LPathHasher hasher = new LPathHasher();
+
+    protected final LPathDirWalker walker = new LPathDirWalker();
+
+    protected final LPathTreeHasher treeHasher = new LPathTreeHasher(hasher, walker, workers);
+
+    protected final LPathDuplicates duplicates = new LPathDuplicates(hasher, walker, workers);
+
+    protected final LPathDiskUsage diskUsage = new LPathDiskUsage(walker);
+
+    protected final LPathAggregator aggregator = new LPathAggregator(walker);
+
+    protected final LPathPageScanner pageScanner = new LPathPageScanner();
+
+    protected final LPathErrors errors = new LPathErrors() {
+        @Override
+        public Varargs err(String func, Exception e) {
+            return u_err(func, e);
+        }
+    };
+
+    protected final LPathSyncer syncer = new LPathSyncer(copier, hasher, walker, workers, remover);
+
+    protected static final int DEFAULT_MAX_OPEN_FILES = 64;
+    protected static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64L << 20;
+
     protected void init(Globals globals, LuaFileSystemHandler handler) {
         this.handler = handler;
+
+        List<Path> trashDirs = new ArrayList<>();
+        try {
+            Path tmp = handler.tmpDir().toSystemPath();
+            if (tmp != null) {
+                trashDirs.add(tmp);
+            }
+        } catch (IOException | RuntimeException e) {
+            //DC
+        }
+
+        try {
+            trashDirs.add(Paths.get(System.getProperty("user.home")));
+        } catch (RuntimeException e) {
+            //DC
+        }
+
+        trash.init(trashDirs);
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -281,6 +350,18 @@ public abstract class AbstractLPathImpl {
         return FALSE;
     }
 
+    protected Varargs lib_fs_mountof(Varargs args) {
+        LuaPath luaPath = u_resolvePath(args).absolutePath();
+        //This is best we can do without syscalls
+        LuaPath parent = luaPath.parent();
+        while (parent != null) {
+            luaPath = parent;
+            parent = luaPath.parent();
+        }
+
+        return valueOf(luaPath.toString());
+    }
+
     protected Varargs lib_fs_islink(Varargs args) {
         FastLuaString path = u_concat_path(args);
         return u_resolvePath(path.toString()).isĹink() ? path : FALSE;
@@ -384,15 +465,7 @@ public abstract class AbstractLPathImpl {
     }
 
     protected Varargs lib_suffix(Varargs args) {
-        FastLuaString name = u_getFileName(args);
-        //>0 intenteded as . at start mean the file name is the extension!
-        for (int i = name.len-1; i > 0; i--) {
-            if (name.bytes[i+name.off] == '.') {
-                return new FastLuaString(name.bytes, i+name.off, name.len-i);
-            }
-        }
-
-        return FastLuaString.EMPTY;
+        return u_getFileName(args).suffix();
     }
 
     protected Varargs lib_suffixes(Varargs args) {
@@ -487,6 +560,29 @@ public abstract class AbstractLPathImpl {
         return u_iterator(tempAr.iterator());
     }
 
+    protected Varargs lib_fs_opendir(Varargs args) {
+        String path = args.checkjstring(1);
+        LuaPath file = u_resolvePath(path);
+        Path sys = file.toSystemPath();
+        try {
+            if (sys != null) {
+                return new LPathDirHandle(path, LPathDirHandle.of(LPathDirWalker.Dir.open(sys)), errors).toUserdata();
+            }
+
+            if (!file.exists()) {
+                return u_err("opendir:" + path + ":(errno=2): No such file or directory");
+            }
+
+            if (!file.isDir()) {
+                return u_err("opendir:" + path + ":(errno=20): Not a directory");
+            }
+
+            return new LPathDirHandle(path, LPathDirHandle.of(file.list()), errors).toUserdata();
+        } catch (IOException | InvalidPathException e) {
+            return u_err("opendir:" + path, e);
+        }
+    }
+
     protected Varargs lib_fs_scandir(Varargs args) {
         LuaValue lv = args.arg(args.narg());
 
@@ -519,42 +615,17 @@ public abstract class AbstractLPathImpl {
         }
 
         final List<Varargs> result = new ArrayList<>();
-        final Set<LuaPath> pathSet = new HashSet<>();
 
         try {
-            file.walkFileTree(depth+1, true, new LuaPath.LuaFileVisitor() {
-                private void visit(String visited, String type) {
+            u_scan(file, depth+1, new ScanVisitor() {
+                @Override
+                public void visit(String visited, String type) {
                     if (visited.isEmpty()) {
                         result.add(u_varargsOf(path, valueOf(type)));
                         return;
                     }
                     result.add(u_varargsOf(u_concat_path(u_varargsOf(path, visited)), valueOf(type)));
                 }
-
-                @Override
-                public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
-
-
-                    if (!pathSet.add(dir.realPath())) {
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-
-                    visit(file.relative(dir).toString(), "in");
-
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(LuaPath child) throws IOException {
-                    visit(file.relative(child).toString(), child.isDir() ? "dir" : "file");
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
-                    visit(file.relative(dir).toString(), "out");
-                    return FileVisitResult.CONTINUE;
-                }
             });
         } catch (IOException e) {
             return u_err("scandir:" + path +":(errno=5): I/O error");
@@ -607,22 +678,21 @@ public abstract class AbstractLPathImpl {
         }
 
         final List<Varargs> result = new ArrayList<>();
-        final Set<LuaPath> pathSet = new HashSet<>();
-
-
 
         try {
-            file.walkFileTree(depth+1, true, new LuaPath.LuaFileVisitor() {
+            u_scan(file, depth+1, new ScanVisitor() {
 
                 LPathPattern patA;
                 LPathPattern patB;
 
-                private void visit(String visited, String type, boolean inOut) {
+                @Override
+                public void visit(String visited, String type) {
 
                     if (visited.isEmpty()) {
                         return;
                     }
 
+                    boolean inOut = "in".equals(type) || "out".equals(type);
                     FastLuaString res = new FastLuaString(visited);
 
                     if (glob.len > 1 && u_isSeperator(glob.last()) && inOut) {
@@ -645,31 +715,6 @@ public abstract class AbstractLPathImpl {
                         result.add(u_varargsOf(res, valueOf(type)));
                     }
                 }
-
-                @Override
-                public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
-
-
-                    if (!pathSet.add(dir.realPath())) {
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-
-                    visit(file.relative(dir).toString(), "in", true);
-
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(LuaPath child) throws IOException {
-                    visit(file.relative(child).toString(), child.isDir() ? "dir" : "file", false);
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
-                    visit(file.relative(dir).toString(), "out", true);
-                    return FileVisitResult.CONTINUE;
-                }
             });
         } catch (IOException e) {
             return u_err("scandir:" + path +":(errno=5): I/O error");
@@ -757,11 +802,52 @@ public abstract class AbstractLPathImpl {
         return string;
     }
 
+    protected Varargs lib_fs_makedirsmany(Varargs args) {
+        LuaTable list = args.checktable(1);
+        for (int i = 1, n = list.length(); i <= n; i++) {
+            Varargs res = lib_fs_makedirs(list.get(i).checkstring());
+            if (res.isnil(1)) {
+                return res;
+            }
+        }
+
+        return TRUE;
+    }
+
     protected Varargs lib_fs_removedirs(Varargs args) {
+        int n = args.narg();
+        boolean async = n > 0 && args.arg(n).isboolean();
+        if (async) {
+            async = args.arg(n).toboolean();
+            args = u_subargs(args, 1, n-1);
+        }
+
         FastLuaString string = u_concat_path(args);
         String jString = string.toString();
         LuaPath f = u_resolvePath(string.toString());
 
+        Path sys = f.toSystemPath();
+        if (async && sys != null) {
+            try {
+                trash.trash(sys);
+                return string.toLuaString();
+            } catch (IOException e) {
+                //Cannot be renamed (root, mount point, missing, no permission), delete it right here which also reports the error.
+            }
+        }
+
+        if (sys != null) {
+            LPathRemover.Result result = remover.remove(sys);
+            LuaValue files = valueOf(result.files.get());
+            LuaValue dirs = valueOf(result.dirs.get());
+            if (result.getError() != null) {
+                String where = sys.equals(result.getErrorPath()) ? jString : result.getErrorPath().toString();
+                return varargsOf(new LuaValue[] {NIL, u_err("removedirs:" + where, result.getError()).arg(2), files, dirs});
+            }
+
+            return varargsOf(string.toLuaString(), files, dirs);
+        }
+
         try {
             f.walkFileTree(Integer.MAX_VALUE, false, new LuaPath.LuaFileVisitor() {
 
@@ -920,17 +1006,581 @@ public abstract class AbstractLPathImpl {
 
 
 
+        LPathCopier.Result result;
         try {
-            srcFile.copyFile(targetFile);
+            result = u_copyFile(srcFile, targetFile);
         } catch (IOException e) {
             return u_err("read:" + sourceString +":(errno=5): I/O error");
         }
 
-        return TRUE;
+        return varargsOf(new LuaValue[] {TRUE, valueOf(result.strategy), valueOf(result.bytes), valueOf(result.skipped)});
     }
 
 
 
+    protected Varargs lib_fs_copytree(Varargs args) {
+        TreeJob job = u_treeJob(args, "copytree", false);
+        if (job.batch.isFailed()) {
+            return u_err(job.batch.getFailedName(), job.batch.getFailure());
+        }
+
+        return varargsOf(new LuaValue[] {TRUE, valueOf(job.files.get()), valueOf(job.dirs), valueOf(job.bytes.get())});
+    }
+
+    protected Varargs lib_fs_linktree(Varargs args) {
+        TreeJob job = u_treeJob(args, "linktree", true);
+        if (job.batch.isFailed()) {
+            return u_err(job.batch.getFailedName(), job.batch.getFailure());
+        }
+
+        return varargsOf(new LuaValue[] {TRUE, valueOf(job.linked.get()), valueOf(job.dirs), valueOf(job.files.get())});
+    }
+
+    protected Varargs lib_fs_sync(Varargs args) {
+        String source = args.checkjstring(1);
+        String target = args.checkjstring(2);
+        LuaTable opts = args.opttable(3, null);
+        LPathSyncer.Options options = new LPathSyncer.Options();
+        options.maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+        options.maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+        if (opts != null) {
+            options.checksum = opts.get("checksum").toboolean();
+            options.delete = opts.get("delete").toboolean();
+            options.maxOpenFiles = opts.get("files").optint(options.maxOpenFiles);
+            options.maxInFlightBytes = opts.get("bytes").optlong(options.maxInFlightBytes);
+            options.rate = opts.get("rate").optlong(0);
+        }
+
+        Path sysSource = u_resolvePath(source).toSystemPath();
+        Path sysTarget = u_resolvePath(target).toSystemPath();
+        if (sysSource == null || sysTarget == null) {
+            return u_err("sync:" + (sysSource == null ? source : target) + ":(errno=95): Operation not supported");
+        }
+
+        LPathSyncer.Result result;
+        try {
+            result = syncer.sync(sysSource, sysTarget, options);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("sync:" + source, e);
+        }
+
+        if (result.getFailure() != null) {
+            return u_err(result.getFailedName(), result.getFailure());
+        }
+
+        return varargsOf(new LuaValue[] {TRUE, valueOf(result.copied.get()), valueOf(result.skipped.get()), valueOf(result.deleted.get()), valueOf(result.bytes.get())});
+    }
+
+    protected Varargs lib_fs_mmap(Varargs args) {
+        String path = args.checkjstring(1);
+        long offset = args.optlong(2, 0);
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("mmap:" + path + ":(errno=95): Operation not supported");
+        }
+
+        try (FileChannel channel = FileChannel.open(sys, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long length = args.isnoneornil(3) ? size - offset : args.checklong(3);
+            if (offset < 0 || length < 0 || offset > size) {
+                return u_err("mmap:" + path + ":(errno=22): Invalid argument");
+            }
+
+            length = Math.min(length, size - offset);
+            if (length > Integer.MAX_VALUE) {
+                //A MappedByteBuffer is indexed by int
+                return u_err("mmap:" + path + ":(errno=27): File too large");
+            }
+
+            return new LPathMappedFile(channel.map(FileChannel.MapMode.READ_ONLY, offset, length)).toUserdata();
+        } catch (IOException | InvalidPathException e) {
+            return u_err("mmap:" + path, e);
+        }
+    }
+
+    protected Varargs lib_fs_hash(Varargs args) {
+        String path = args.checkjstring(1);
+        String algorithm = u_hashAlgorithm(args, 2);
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("hash:" + path + ":(errno=95): Operation not supported");
+        }
+
+        try {
+            return valueOf(hasher.hash(sys, algorithm));
+        } catch (IOException | InvalidPathException e) {
+            return u_err("hash:" + path, e);
+        }
+    }
+
+    protected Varargs lib_fs_hashmany(Varargs args) {
+        LuaTable list = args.checktable(1);
+        final String algorithm = u_hashAlgorithm(args, 2);
+        int n = list.length();
+        String[] paths = new String[n];
+        final String[] hashes = new String[n];
+
+        //Paths are resolved here so that only the hashing itself runs on the pool.
+        LPathWorkerPool.Batch batch = workers.newBatch(workers.getThreads(), DEFAULT_MAX_IN_FLIGHT_BYTES);
+        try {
+            for (int i = 0; i < n && !batch.isFailed(); i++) {
+                final int idx = i;
+                paths[i] = list.get(i+1).checkjstring();
+                final Path sys = u_resolvePath(paths[i]).toSystemPath();
+                if (sys == null) {
+                    batch.fail("hash:" + paths[i], new FileSystemException(paths[i], null, "Operation not supported"));
+                    break;
+                }
+
+                batch.submit(0, new LPathWorkerPool.Task("hash:" + paths[i]) {
+                    @Override
+                    protected void run() throws Exception {
+                        hashes[idx] = hasher.hash(sys, algorithm);
+                    }
+                });
+            }
+
+            batch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return u_err("hash:(errno=4): Interrupted system call");
+        }
+
+        if (batch.isFailed()) {
+            return u_err(batch.getFailedName(), batch.getFailure());
+        }
+
+        LuaTable result = new LuaTable();
+        for (int i = 0; i < n; i++) {
+            result.set(paths[i], hashes[i]);
+        }
+
+        return result;
+    }
+
+    protected Varargs lib_fs_treehash(Varargs args) {
+        String path = args.checkjstring(1);
+        LuaTable opts = args.opttable(2, null);
+        String algorithm = LPathHasher.SHA256;
+        LuaValue cache = NIL;
+        if (opts != null) {
+            algorithm = opts.get("algorithm").optjstring(algorithm);
+            if (!LPathHasher.isSupported(algorithm)) {
+                argerror(2, "unknown hash algorithm " + algorithm);
+            }
+            cache = opts.get("cache");
+        }
+
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("treehash:" + path + ":(errno=95): Operation not supported");
+        }
+
+        try {
+            Path cacheFile = null;
+            if (cache.isstring()) {
+                cacheFile = u_resolvePath(cache.tojstring()).toSystemPath();
+            } else if (cache.isnil() || cache.toboolean()) {
+                Path tmp = handler.tmpDir().toSystemPath();
+                cacheFile = tmp == null ? null : LPathTreeHasher.defaultCacheFile(tmp, sys);
+            }
+
+            LPathTreeHasher.Result result = treeHasher.hash(sys, algorithm, cacheFile);
+            LuaTable dirs = new LuaTable();
+            for (Map.Entry<String, String> e : result.dirs.entrySet()) {
+                dirs.set(e.getKey(), e.getValue());
+            }
+
+            return varargsOf(new LuaValue[] {valueOf(result.digest), dirs, valueOf(result.hashed), valueOf(result.cached)});
+        } catch (IOException | InvalidPathException e) {
+            return u_err("treehash:" + path, e);
+        }
+    }
+
+    protected Varargs lib_fs_diff(Varargs args) {
+        String a = args.checkjstring(1);
+        String b = args.checkjstring(2);
+        String mode = args.optjstring(3, LPathTreeDiff.AUTO);
+        if (!LPathTreeDiff.isMode(mode)) {
+            argerror(3, "unknown mode " + mode);
+        }
+
+        Path sysA = u_resolvePath(a).toSystemPath();
+        Path sysB = u_resolvePath(b).toSystemPath();
+        if (sysA == null || sysB == null) {
+            return u_err("diff:" + (sysA == null ? a : b) + ":(errno=95): Operation not supported");
+        }
+
+        LPathTreeDiff diff;
+        try {
+            diff = new LPathTreeDiff(sysA, sysB, mode);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("diff:" + a, e);
+        }
+
+        return new LPathDiffHandle(a, diff, errors).toUserdata();
+    }
+
+    protected Varargs lib_fs_duplicates(Varargs args) {
+        List<String> roots = new ArrayList<>();
+        if (args.istable(1)) {
+            LuaTable list = args.checktable(1);
+            for (int i = 1, n = list.length(); i <= n; i++) {
+                roots.add(list.get(i).checkjstring());
+            }
+        } else {
+            roots.add(args.checkjstring(1));
+        }
+
+        LuaTable opts = args.opttable(2, null);
+        LPathDuplicates.Options options = new LPathDuplicates.Options();
+        options.maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+        if (opts != null) {
+            options.minSize = opts.get("min").optlong(options.minSize);
+            options.maxOpenFiles = opts.get("files").optint(options.maxOpenFiles);
+        }
+
+        List<Path> sysRoots = new ArrayList<>(roots.size());
+        for (String root : roots) {
+            Path sys = u_resolvePath(root).toSystemPath();
+            if (sys == null) {
+                return u_err("duplicates:" + root + ":(errno=95): Operation not supported");
+            }
+            sysRoots.add(sys);
+        }
+
+        LPathDuplicates.Result result;
+        try {
+            result = duplicates.find(sysRoots, options);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("duplicates:" + roots.get(0), e);
+        }
+
+        if (result.getFailure() != null) {
+            return u_err(result.getFailedName(), result.getFailure());
+        }
+
+        LuaTable groups = new LuaTable();
+        for (LPathDuplicates.Group group : result.groups) {
+            LuaTable files = new LuaTable();
+            files.set("size", valueOf(group.size));
+            files.set("hash", valueOf(group.hash));
+            for (LPathDuplicates.File file : group.files) {
+                String relative = file.relative.toString();
+                files.insert(0, relative.isEmpty() ? valueOf(roots.get(file.root)) : u_concat_path(u_varargsOf(roots.get(file.root), relative)).toLuaString());
+            }
+            groups.insert(0, files);
+        }
+
+        return varargsOf(groups, valueOf(result.files));
+    }
+
+    protected Varargs lib_fs_du(Varargs args) {
+        String path = args.checkjstring(1);
+        int depth = args.optint(2, 0);
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("du:" + path + ":(errno=95): Operation not supported");
+        }
+
+        Map<String, LPathDiskUsage.Usage> usages;
+        try {
+            usages = diskUsage.du(sys, depth, u_duStat());
+        } catch (IOException | InvalidPathException e) {
+            return u_err("du:" + path, e);
+        }
+
+        LuaTable result = new LuaTable();
+        for (Map.Entry<String, LPathDiskUsage.Usage> e : usages.entrySet()) {
+            LPathDiskUsage.Usage usage = e.getValue();
+            LuaTable entry = new LuaTable();
+            entry.set("size", valueOf(usage.size));
+            entry.set("disk", valueOf(usage.allocated));
+            entry.set("files", valueOf(usage.files));
+            entry.set("dirs", valueOf(usage.dirs));
+            result.set(e.getKey(), entry);
+        }
+
+        return result;
+    }
+
+    /**
+     * returns how fs.du reads the size of a single entry.
+     */
+    protected LPathDiskUsage.Stat u_duStat() {
+        return LPathDiskUsage.BASIC;
+    }
+
+    protected Varargs lib_fs_top(Varargs args) {
+        String path = args.checkjstring(1);
+        int n = args.checkint(2);
+        String key = args.optjstring(3, LPathAggregator.SIZE);
+        boolean ascending = key.startsWith("-");
+        if (ascending) {
+            key = key.substring(1);
+        }
+
+        if (!LPathAggregator.isTopKey(key)) {
+            argerror(3, "unknown key " + key);
+        }
+
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("top:" + path + ":(errno=95): Operation not supported");
+        }
+
+        List<LPathAggregator.Entry> entries;
+        try {
+            entries = aggregator.top(sys, n, key, ascending);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("top:" + path, e);
+        }
+
+        LuaTable result = new LuaTable();
+        for (LPathAggregator.Entry entry : entries) {
+            String relative = entry.relative.toString();
+            LuaTable row = new LuaTable();
+            row.set("path", relative.isEmpty() ? valueOf(path) : u_concat_path(u_varargsOf(path, relative)).toLuaString());
+            row.set("value", valueOf(entry.value));
+            result.insert(0, row);
+        }
+
+        return result;
+    }
+
+    protected Varargs lib_fs_groupby(Varargs args) {
+        String path = args.checkjstring(1);
+        String key = args.checkjstring(2);
+        String agg = args.optjstring(3, LPathAggregator.COUNT);
+        if (!LPathAggregator.isGroupKey(key)) {
+            argerror(2, "unknown key " + key);
+        }
+        if (!LPathAggregator.isAggregation(agg)) {
+            argerror(3, "unknown aggregation " + agg);
+        }
+
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("groupby:" + path + ":(errno=95): Operation not supported");
+        }
+
+        Map<String, Long> groups;
+        try {
+            groups = aggregator.groupBy(sys, key, agg);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("groupby:" + path, e);
+        }
+
+        LuaTable result = new LuaTable();
+        boolean depth = LPathAggregator.DEPTH.equals(key);
+        for (Map.Entry<String, Long> e : groups.entrySet()) {
+            result.set(depth ? valueOf(Integer.parseInt(e.getKey())) : valueOf(e.getKey()), valueOf(e.getValue()));
+        }
+
+        return result;
+    }
+
+    protected Varargs lib_fs_watch(Varargs args) {
+        List<String> paths = new ArrayList<>();
+        if (args.istable(1)) {
+            LuaTable list = args.checktable(1);
+            for (int i = 1, n = list.length(); i <= n; i++) {
+                paths.add(list.get(i).checkjstring());
+            }
+        } else {
+            paths.add(args.checkjstring(1));
+        }
+
+        String flags = args.optjstring(2, "cmd");
+        boolean recursive = args.arg(3).toboolean();
+        int mask = 0;
+        for (char c : flags.toCharArray()) {
+            switch (c) {
+                case 'c':
+                    mask |= LPathWatcher.CREATE;
+                    break;
+                case 'm':
+                    mask |= LPathWatcher.MODIFY;
+                    break;
+                case 'd':
+                    mask |= LPathWatcher.DELETE;
+                    break;
+                default:
+                    argerror(2, "unknown event " + c);
+            }
+        }
+
+        if (paths.isEmpty()) {
+            argerror(1, "no paths to watch");
+        }
+
+        Path[] roots = new Path[paths.size()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = u_resolvePath(paths.get(i)).toSystemPath();
+            if (roots[i] == null) {
+                return u_err("watch:" + paths.get(i) + ":(errno=95): Operation not supported");
+            }
+
+            if (!Files.isDirectory(roots[i])) {
+                return u_err("watch:" + paths.get(i) + (Files.exists(roots[i]) ? ":(errno=20): Not a directory" : ":(errno=2): No such file or directory"));
+            }
+        }
+
+        try {
+            return new LPathWatcher(paths.toArray(new String[roots.length]), roots, mask, recursive, new LPathWatcher.Joiner() {
+                @Override
+                public LuaValue join(String root, String relative) {
+                    return u_concat_path(u_varargsOf(root, relative)).toLuaString();
+                }
+            }, errors).toUserdata();
+        } catch (UnsupportedOperationException e) {
+            return u_err("watch:" + paths.get(0) + ":(errno=95): Operation not supported");
+        } catch (IOException e) {
+            return u_err("watch:" + paths.get(0), e);
+        }
+    }
+
+    protected Varargs lib_fs_scanpage(Varargs args) {
+        String path = args.checkjstring(1);
+        int limit = args.checkint(2);
+        String token = args.optjstring(3, null);
+        if (limit <= 0) {
+            argerror(2, "limit must be positive");
+        }
+
+        Path sys = u_resolvePath(path).toSystemPath();
+        if (sys == null) {
+            return u_err("scanpage:" + path + ":(errno=95): Operation not supported");
+        }
+
+        LPathPageScanner.Page page;
+        try {
+            page = pageScanner.scan(sys, limit, token);
+        } catch (IllegalArgumentException e) {
+            //InvalidPathException is an IllegalArgumentException too, either way the token did not come from us
+            argerror(3, "malformed token");
+            return NONE;
+        } catch (IOException e) {
+            return u_err("scanpage:" + path, e);
+        }
+
+        LuaTable entries = new LuaTable();
+        for (LPathPageScanner.Entry entry : page.entries) {
+            LuaTable row = new LuaTable();
+            row.set("path", u_concat_path(u_varargsOf(path, entry.relative)).toLuaString());
+            row.set("type", entry.dir ? "dir" : entry.link ? "link" : "file");
+            entries.insert(0, row);
+        }
+
+        return varargsOf(entries, page.token == null ? NIL : valueOf(page.token));
+    }
+
+    protected Varargs lib_fs_walk(Varargs args) {
+        final String path = args.checkjstring(1);
+        final LuaFunction fn = args.checkfunction(2);
+        LuaTable opts = args.opttable(3, null);
+        int depth = Integer.MAX_VALUE;
+        boolean follow = false;
+        if (opts != null) {
+            depth = opts.get("depth").optint(depth);
+            follow = opts.get("follow").toboolean();
+        }
+
+        final LuaPath root = u_resolvePath(path);
+        final long[] visited = new long[1];
+        try {
+            Path sys = root.toSystemPath();
+            if (sys != null) {
+                walker.walk(sys, depth, follow, new LPathDirWalker.Visitor() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+                        return visit(relative.toString(), attrs);
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) {
+                        return visit(relative.toString(), attrs);
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path relative) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                        //Not readable, visit it as empty
+                        return postVisitDirectory(relative);
+                    }
+
+                    private FileVisitResult visit(String relative, BasicFileAttributes attrs) {
+                        visited[0]++;
+                        return u_walkCallback(fn, path, relative, attrs);
+                    }
+                });
+            } else {
+                root.walkFileTree(depth, follow, new LuaPath.LuaFileVisitor() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
+                        return visit(dir);
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(LuaPath file) throws IOException {
+                        return visit(file);
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(LuaPath dir) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private FileVisitResult visit(LuaPath child) throws IOException {
+                        visited[0]++;
+                        return u_walkCallback(fn, path, root.relative(child).toString(), child.attributes());
+                    }
+                });
+            }
+        } catch (IOException | InvalidPathException e) {
+            return u_err("walk:" + path, e);
+        }
+
+        return varargsOf(TRUE, valueOf(visited[0]));
+    }
+
+    /**
+     * Calls fn(path, type, stat) and maps its return value to the result of the visitor.
+     * false or "prune" skip the subtree of a directory, "stop" ends the walk.
+     */
+    protected FileVisitResult u_walkCallback(LuaFunction fn, String root, String relative, BasicFileAttributes attrs) {
+        String type = attrs.isDirectory() ? "dir" : attrs.isRegularFile() ? "file" : attrs.isSymbolicLink() ? "link" : "other";
+        LuaTable stat = new LuaTable();
+        stat.set("size", valueOf(attrs.size()));
+        stat.set("mtime", valueOf(attrs.lastModifiedTime().to(TimeUnit.SECONDS)));
+
+        LuaValue path = relative.isEmpty() ? valueOf(root) : u_concat_path(u_varargsOf(root, relative)).toLuaString();
+        LuaValue result = fn.call(path, valueOf(type), stat);
+        String action = result.isstring() ? result.tojstring() : null;
+        if (result == FALSE || "prune".equals(action)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+
+        if ("stop".equals(action)) {
+            return FileVisitResult.TERMINATE;
+        }
+
+        return FileVisitResult.CONTINUE;
+    }
+
+    protected String u_hashAlgorithm(Varargs args, int idx) {
+        String algorithm = args.optjstring(idx, LPathHasher.SHA256);
+        if (!LPathHasher.isSupported(algorithm)) {
+            argerror(idx, "unknown hash algorithm " + algorithm);
+        }
+
+        return algorithm;
+    }
+
     protected Varargs lib_fs_rename(Varargs args) {
         LuaString source = args.checkstring(1);
         LuaString target = args.checkstring(2);
@@ -1210,6 +1860,342 @@ public abstract class AbstractLPathImpl {
         };
     }
 
+    /**
+     * Copies the content of a file. Uses the copy engine if both paths are system paths.
+     */
+    protected LPathCopier.Result u_copyFile(LuaPath source, LuaPath target) throws IOException {
+        Path sSource = source.toSystemPath();
+        Path sTarget = target.toSystemPath();
+        if (sSource == null || sTarget == null) {
+            source.copyFile(target);
+            return new LPathCopier.Result(LPathCopier.STREAM, target.size());
+        }
+
+        return copier.copy(sSource, sTarget);
+    }
+
+    /**
+     * State of a single copytree/linktree call.
+     */
+    protected static class TreeJob {
+        protected final String func;
+        protected final LPathWorkerPool.Batch batch;
+        protected final boolean link;
+        protected final boolean fallback;
+        protected final AtomicLong files = new AtomicLong();
+        protected final AtomicLong linked = new AtomicLong();
+        protected final AtomicLong bytes = new AtomicLong();
+        protected long dirs;
+
+        protected TreeJob(String func, LPathWorkerPool.Batch batch, boolean link, boolean fallback) {
+            this.func = func;
+            this.batch = batch;
+            this.link = link;
+            this.fallback = fallback;
+        }
+    }
+
+    /**
+     * Parses the (source, target[, opts]) or ({{source, target}, ...}[, opts]) arguments and runs the job until all files are done.
+     */
+    protected TreeJob u_treeJob(Varargs args, String func, boolean link) {
+        LuaTable opts;
+        List<String[]> pairs = new ArrayList<>();
+        if (args.istable(1)) {
+            LuaTable list = args.checktable(1);
+            for (int i = 1, n = list.length(); i <= n; i++) {
+                LuaTable pair = list.get(i).checktable();
+                pairs.add(new String[] {pair.get(1).checkjstring(), pair.get(2).checkjstring()});
+            }
+            opts = args.opttable(2, null);
+        } else {
+            pairs.add(new String[] {args.checkjstring(1), args.checkjstring(2)});
+            opts = args.opttable(3, null);
+        }
+
+        int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+        long maxInFlight = DEFAULT_MAX_IN_FLIGHT_BYTES;
+        boolean fallback = false;
+        if (opts != null) {
+            maxOpenFiles = opts.get("files").optint(maxOpenFiles);
+            maxInFlight = opts.get("bytes").optlong(maxInFlight);
+            fallback = opts.get("fallback").toboolean();
+        }
+
+        TreeJob job = new TreeJob(func, workers.newBatch(maxOpenFiles, maxInFlight), link, fallback);
+
+        try {
+            for (String[] pair : pairs) {
+                if (job.batch.isFailed()) {
+                    break;
+                }
+
+                try {
+                    u_copyTree(job, pair[0], pair[1]);
+                } catch (IOException | InvalidPathException e) {
+                    job.batch.fail(func + ":" + pair[0], e);
+                }
+            }
+        } finally {
+            try {
+                job.batch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.batch.fail(func + ":" + pairs.get(0)[0], new InterruptedIOException());
+            }
+        }
+
+        return job;
+    }
+
+    /**
+     * Walks source on the calling thread creating the directories below target and hands the files to the batch.
+     */
+    protected void u_copyTree(final TreeJob job, final String source, final String target) throws IOException {
+        final LuaPath root = u_resolvePath(source);
+        if (!root.exists()) {
+            throw new NoSuchFileException(source);
+        }
+
+        if (!root.isDir()) {
+            u_submitFile(job, root, u_resolvePath(target), u_mustCopy(job, root, u_resolvePath(target).parent()));
+            return;
+        }
+
+        Path sRoot = root.toSystemPath();
+        Path sTarget = u_resolvePath(target).toSystemPath();
+        if (sRoot != null && sTarget != null) {
+            LPathNestedTreeException.check(sRoot, sTarget);
+        }
+
+        root.walkFileTree(Integer.MAX_VALUE, false, new LuaPath.LuaFileVisitor() {
+            //decided once the target root exists
+            private boolean copy;
+            private boolean first = true;
+
+            @Override
+            public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
+                if (job.batch.isFailed()) {
+                    return FileVisitResult.TERMINATE;
+                }
+
+                LuaPath targetDir = u_treeTarget(root, dir, target);
+                if (!targetDir.isDir()) {
+                    targetDir.mkdir();
+                    job.dirs++;
+                }
+
+                if (first) {
+                    first = false;
+                    copy = u_mustCopy(job, root, targetDir);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(LuaPath file) throws IOException {
+                if (job.batch.isFailed()) {
+                    return FileVisitResult.TERMINATE;
+                }
+
+                LuaPath targetFile = u_treeTarget(root, file, target);
+                Path sSource = file.toSystemPath();
+                Path sTarget = targetFile.toSystemPath();
+                if (sSource != null && sTarget != null && file.isĹink()) {
+                    Files.deleteIfExists(sTarget);
+                    Files.createSymbolicLink(sTarget, Files.readSymbolicLink(sSource));
+                    (job.link ? job.linked : job.files).incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                u_submitFile(job, file, targetFile, copy);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * returns true if the files below source have to be copied instead of linked into targetDir.
+     * throws if they cannot be linked and the job has no fallback to copy.
+     */
+    protected boolean u_mustCopy(TreeJob job, LuaPath source, LuaPath targetDir) throws IOException {
+        if (!job.link) {
+            return true;
+        }
+
+        if (source.toSystemPath() != null && targetDir != null && targetDir.toSystemPath() != null && !Boolean.FALSE.equals(u_sameDevice(source, targetDir))) {
+            return false;
+        }
+
+        if (job.fallback) {
+            return true;
+        }
+
+        throw new AtomicMoveNotSupportedException(source.toString(), targetDir == null ? null : targetDir.toString(), "Invalid cross-device link");
+    }
+
+    /**
+     * returns true/false if both paths are on the same device or null if this cannot be determined.
+     */
+    protected Boolean u_sameDevice(LuaPath a, LuaPath b) {
+        return null;
+    }
+
+    /**
+     * Links or copies a single file. Only system paths are handed to the workers,
+     * anything else goes through the file system handler and is done on the calling thread.
+     */
+    protected void u_submitFile(final TreeJob job, LuaPath source, LuaPath target, final boolean copy) throws IOException {
+        final Path sSource = source.toSystemPath();
+        final Path sTarget = target.toSystemPath();
+        if (sSource == null || sTarget == null) {
+            try {
+                if (!copy && !job.fallback) {
+                    throw new FileSystemException(source.toString(), target.toString(), "Operation not supported");
+                }
+
+                LPathCopier.Result result = u_copyFile(source, target);
+                job.files.incrementAndGet();
+                job.bytes.addAndGet(result.bytes);
+            } catch (IOException e) {
+                job.batch.fail(job.func + ":" + source, e);
+            }
+            return;
+        }
+
+        long size = copy ? Files.size(sSource) : 0;
+        try {
+            job.batch.submit(size, new LPathWorkerPool.Task(job.func + ":" + source) {
+                @Override
+                protected void run() throws Exception {
+                    if (!copy) {
+                        try {
+                            u_linkFile(sSource, sTarget);
+                            job.linked.incrementAndGet();
+                            return;
+                        } catch (NoSuchFileException | AccessDeniedException e) {
+                            throw e;
+                        } catch (FileSystemException e) {
+                            //Device could not be determined up front, only some file systems refuse hard links.
+                            if (!job.fallback) {
+                                throw e;
+                            }
+                        }
+                    }
+
+                    LPathCopier.Result result = copier.copy(sSource, sTarget);
+                    job.files.incrementAndGet();
+                    job.bytes.addAndGet(result.bytes);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Hard links target to source, replacing target if it exists.
+     */
+    protected void u_linkFile(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        Files.createLink(target, source);
+    }
+
+    /**
+     * returns the path below target that corresponds to child below root.
+     */
+    protected LuaPath u_treeTarget(LuaPath root, LuaPath child, String target) {
+        String relative = root.relative(child).toString();
+        if (relative.isEmpty()) {
+            return u_resolvePath(target);
+        }
+
+        return u_resolvePath(u_concat_path(u_varargsOf(target, relative)).toString());
+    }
+
+    /**
+     * Callback of u_scan.
+     */
+    protected interface ScanVisitor {
+        /**
+         * relative is empty for the root. type is "in"/"out" around the contents of a directory and "dir"/"file"
+         * for entries that are not descended into.
+         */
+        void visit(String relative, String type);
+    }
+
+    /**
+     * Walks root depth first following symbolic links. Every directory is only visited once.
+     */
+    protected void u_scan(final LuaPath root, int maxDepth, final ScanVisitor visitor) throws IOException {
+        final Set<LuaPath> pathSet = new HashSet<>();
+        root.walkFileTree(maxDepth, true, new LuaPath.LuaFileVisitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
+                if (!pathSet.add(dir.realPath())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                visitor.visit(root.relative(dir).toString(), "in");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(LuaPath child) throws IOException {
+                visitor.visit(root.relative(child).toString(), child.isDir() ? "dir" : "file");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
+                visitor.visit(root.relative(dir).toString(), "out");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Turns an exception thrown by a file operation into the error return value.
+     */
+    protected Varargs u_err(String func, Exception e) {
+        if (e instanceof NoSuchFileException || e instanceof FileNotFoundException) {
+            return u_err(func + ":(errno=2): No such file or directory");
+        }
+
+        if (e instanceof FileAlreadyExistsException) {
+            return u_err(func + ":(errno=17): File exists");
+        }
+
+        if (e instanceof DirectoryNotEmptyException) {
+            return u_err(func + ":(errno=39): Directory not empty");
+        }
+
+        if (e instanceof AccessDeniedException) {
+            return u_err(func + ":(errno=13): Permission denied");
+        }
+
+        if (e instanceof NotDirectoryException) {
+            return u_err(func + ":(errno=20): Not a directory");
+        }
+
+        if (e instanceof LPathNestedTreeException) {
+            return u_err(func + ":(errno=22): Invalid argument");
+        }
+
+        if (e instanceof AtomicMoveNotSupportedException) {
+            return u_err(func + ":(errno=18): Invalid cross-device link");
+        }
+
+        return u_err(func + ":(errno=5): I/O error");
+    }
+
     protected Varargs u_subargs(Varargs varargs, int start, int end) {
         int n = varargs.narg();
         if (end > n) {
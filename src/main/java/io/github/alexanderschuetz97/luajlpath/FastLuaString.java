@@ -185,6 +185,20 @@ public class FastLuaString extends Varargs {
         return len > 0 && bytes[off+len-1] == '.';
     }
 
+    /**
+     * returns the suffix of this file name including the dot or EMPTY.
+     */
+    public FastLuaString suffix() {
+        //>0 intenteded as . at start mean the file name is the extension!
+        for (int i = len-1; i > 0; i--) {
+            if (bytes[i+off] == '.') {
+                return new FastLuaString(bytes, i+off, len-i);
+            }
+        }
+
+        return EMPTY;
+    }
+
     public FastLuaString addSep() {
         byte[] copy = new byte[len+1];
         System.arraycopy(bytes, off, copy, 0, len);
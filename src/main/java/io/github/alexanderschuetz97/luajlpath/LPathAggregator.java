@@ -0,0 +1,357 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregations over the regular files of a tree that are computed during the walk,
+ * so memory depends on the size of the result and not on the number of files.
+ * Symbolic links are not followed.
+ */
+public class LPathAggregator {
+
+    public static final String SIZE = "size";
+    public static final String MTIME = "mtime";
+    public static final String ATIME = "atime";
+    public static final String CTIME = "ctime";
+
+    public static final String SUFFIX = "suffix";
+    public static final String DEPTH = "depth";
+    public static final String OWNER = "owner";
+
+    public static final String COUNT = "count";
+    public static final String MAX = "max";
+
+    private final LPathDirWalker walker;
+
+    public LPathAggregator(LPathDirWalker walker) {
+        this.walker = walker;
+    }
+
+    public static boolean isTopKey(String key) {
+        return SIZE.equals(key) || MTIME.equals(key) || ATIME.equals(key) || CTIME.equals(key);
+    }
+
+    public static boolean isGroupKey(String key) {
+        return SUFFIX.equals(key) || DEPTH.equals(key) || OWNER.equals(key);
+    }
+
+    public static boolean isAggregation(String agg) {
+        return COUNT.equals(agg) || SIZE.equals(agg) || MAX.equals(agg);
+    }
+
+    public static class Entry {
+        public final Path relative;
+        public final long value;
+
+        private Entry(Path relative, long value) {
+            this.relative = relative;
+            this.value = value;
+        }
+    }
+
+    /**
+     * returns the n files with the largest value of key, or the smallest if ascending is true, best first.
+     * times are in seconds.
+     */
+    public List<Entry> top(Path root, final int n, final String key, boolean ascending) throws IOException {
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+
+        //The head of the queue is the entry that is dropped first
+        final Comparator<Entry> order = ascending ? Collections.reverseOrder(VALUE_ORDER) : VALUE_ORDER;
+        final PriorityQueue<Entry> heap = new PriorityQueue<>(n, order);
+
+        final UnixAttributes unix = CTIME.equals(key) ? new UnixAttributes() : null;
+        walker.walk(root, Integer.MAX_VALUE, false, unix == null ? LPathDirWalker.DIR_ATTRIBUTES : unix, new FileVisitor() {
+            @Override
+            protected void visitRegularFile(Path relative, BasicFileAttributes attrs) {
+                Entry entry = new Entry(relative, unix == null ? value(attrs, key) : seconds(unix.ctime));
+                if (heap.size() == n) {
+                    //Ties keep the entry that was found first
+                    if (order.compare(entry, heap.peek()) <= 0) {
+                        return;
+                    }
+                    heap.poll();
+                }
+
+                heap.offer(entry);
+            }
+        });
+
+        List<Entry> result = new ArrayList<>(heap);
+        Collections.sort(result, Collections.reverseOrder(order));
+        return result;
+    }
+
+    private static final Comparator<Entry> VALUE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.value, b.value);
+        }
+    };
+
+    /**
+     * Groups the files by suffix (same rules as path.suffix), depth of the containing directory below root or owner.
+     * agg is the number of files, the sum of their sizes or the largest size per group.
+     * Owners are grouped by uid during the walk, every uid is only mapped to its name once at the end.
+     */
+    public Map<String, Long> groupBy(final Path root, final String key, final String agg) throws IOException {
+        final Map<String, long[]> groups = new HashMap<>();
+        final Map<Integer, long[]> uids = new HashMap<>();
+        //one file per uid to look up the name with
+        final Map<Integer, Path> samples = new HashMap<>();
+        final UnixAttributes unix = OWNER.equals(key) ? new UnixAttributes() : null;
+        walker.walk(root, Integer.MAX_VALUE, false, unix == null ? LPathDirWalker.DIR_ATTRIBUTES : unix, new FileVisitor() {
+            @Override
+            protected void visitRegularFile(Path relative, BasicFileAttributes attrs) throws IOException {
+                long[] value;
+                switch (key) {
+                    case SUFFIX:
+                        Path name = relative.getFileName();
+                        value = group(groups, new FastLuaString(name == null ? root.getFileName().toString() : name.toString()).suffix().toString());
+                        break;
+                    case DEPTH:
+                        value = group(groups, String.valueOf(relative.toString().isEmpty() ? 0 : relative.getNameCount() - 1));
+                        break;
+                    default:
+                        if (unix.uid < 0) {
+                            //No uids on this platform
+                            value = group(groups, Files.getOwner(root.resolve(relative), LinkOption.NOFOLLOW_LINKS).getName());
+                            break;
+                        }
+
+                        value = uids.get(unix.uid);
+                        if (value == null) {
+                            value = new long[1];
+                            uids.put(unix.uid, value);
+                            samples.put(unix.uid, relative);
+                        }
+                        break;
+                }
+
+                value[0] = aggregate(agg, value[0], attrs.size());
+            }
+        });
+
+        for (Map.Entry<Integer, long[]> e : uids.entrySet()) {
+            String owner;
+            try {
+                owner = Files.getOwner(root.resolve(samples.get(e.getKey())), LinkOption.NOFOLLOW_LINKS).getName();
+            } catch (IOException ex) {
+                //The sample is gone
+                owner = String.valueOf(e.getKey());
+            }
+
+            long[] value = groups.get(owner);
+            if (value == null) {
+                groups.put(owner, e.getValue());
+            } else if (MAX.equals(agg)) {
+                //Several uids with the same name
+                value[0] = Math.max(value[0], e.getValue()[0]);
+            } else {
+                value[0] += e.getValue()[0];
+            }
+        }
+
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, long[]> e : groups.entrySet()) {
+            result.put(e.getKey(), e.getValue()[0]);
+        }
+
+        return result;
+    }
+
+    private static long[] group(Map<String, long[]> groups, String group) {
+        long[] value = groups.get(group);
+        if (value == null) {
+            value = new long[1];
+            groups.put(group, value);
+        }
+
+        return value;
+    }
+
+    private static long aggregate(String agg, long current, long size) {
+        switch (agg) {
+            case COUNT:
+                return current + 1;
+            case SIZE:
+                return current + size;
+            default:
+                return Math.max(current, size);
+        }
+    }
+
+    private static long value(BasicFileAttributes attrs, String key) {
+        switch (key) {
+            case SIZE:
+                return attrs.size();
+            case MTIME:
+                return seconds(attrs.lastModifiedTime());
+            case ATIME:
+                return seconds(attrs.lastAccessTime());
+            default:
+                //Only used without the unix view, the creation time is what windows reports as st_ctime
+                return seconds(attrs.creationTime());
+        }
+    }
+
+    private static long seconds(FileTime time) {
+        return time == null ? 0 : time.to(TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads unix:ctime and unix:uid in the same stat as the attributes of the walk.
+     * Falls back to the basic attributes (creation time, no uid) where the unix view is not available.
+     */
+    private static class UnixAttributes implements LPathDirWalker.Attributes {
+        private static final String NAMES = "unix:size,lastModifiedTime,lastAccessTime,creationTime,isRegularFile,isDirectory,isSymbolicLink,isOther,fileKey,ctime,uid";
+
+        private boolean supported = true;
+        //of the entry that is visited next
+        private FileTime ctime;
+        private int uid = -1;
+
+        @Override
+        public BasicFileAttributes read(LPathDirWalker.Dir dir, Path name, boolean followLinks) throws IOException {
+            if (supported) {
+                Path path = dir == null ? name : dir.getPath().resolve(name);
+                try {
+                    Map<String, Object> values = Files.readAttributes(path, NAMES, LPathDirWalker.options(followLinks));
+                    ctime = (FileTime) values.get("ctime");
+                    uid = (Integer) values.get("uid");
+                    return new MapAttributes(values);
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    supported = false;
+                }
+            }
+
+            BasicFileAttributes attrs = LPathDirWalker.DIR_ATTRIBUTES.read(dir, name, followLinks);
+            ctime = attrs.creationTime();
+            uid = -1;
+            return attrs;
+        }
+    }
+
+    /**
+     * BasicFileAttributes backed by the map of Files.readAttributes.
+     */
+    private static class MapAttributes implements BasicFileAttributes {
+        private final Map<String, Object> values;
+
+        private MapAttributes(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return (FileTime) values.get("lastModifiedTime");
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return (FileTime) values.get("lastAccessTime");
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return (FileTime) values.get("creationTime");
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return (Boolean) values.get("isRegularFile");
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return (Boolean) values.get("isDirectory");
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return (Boolean) values.get("isSymbolicLink");
+        }
+
+        @Override
+        public boolean isOther() {
+            return (Boolean) values.get("isOther");
+        }
+
+        @Override
+        public long size() {
+            return (Long) values.get("size");
+        }
+
+        @Override
+        public Object fileKey() {
+            return values.get("fileKey");
+        }
+    }
+
+    /**
+     * Visitor that only sees regular files.
+     */
+    private abstract static class FileVisitor implements LPathDirWalker.Visitor {
+        @Override
+        public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) throws IOException {
+            if (attrs.isRegularFile()) {
+                visitRegularFile(relative, attrs);
+            }
+
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path relative) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+            //Not readable, visit it as empty
+            return postVisitDirectory(relative);
+        }
+
+        protected abstract void visitRegularFile(Path relative, BasicFileAttributes attrs) throws IOException;
+    }
+}
@@ -0,0 +1,262 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies file contents between channels.
+ *
+ * FileChannel.transferTo is tried first as the jvm maps it to an in kernel copy (sendfile/copy_file_range) where
+ * the platform supports it. Whatever transferTo does not copy (special files that report a size of 0 or files that grow
+ * during the copy) is copied with a plain read/write loop.
+ */
+public class LPathCopier {
+
+    /**
+     * Content copied by FileChannel.transferTo
+     */
+    public static final String TRANSFER = "transfer";
+
+    /**
+     * Content copied by read/write using a direct buffer
+     */
+    public static final String BUFFERED = "buffered";
+
+    /**
+     * Content copied by the LuaFileSystemHandler because the path has no system path.
+     */
+    public static final String STREAM = "stream";
+
+    /**
+     * Content copied by read/write but blocks that only contain zeros are not written to preserve holes.
+     */
+    public static final String SPARSE = "sparse";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    //Granularity of holes on pretty much every file system.
+    private static final int SPARSE_BLOCK = 4096;
+
+    //Linux sendfile will not copy more than this in one call anyways
+    private static final long TRANSFER_CHUNK = 0x7ffff000L;
+
+    //Small enough that a rate limited copy does not burst
+    private static final long THROTTLE_CHUNK = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    public static class Result {
+        public final String strategy;
+        public final long bytes;
+        //bytes that were not written because they are part of a hole
+        public final long skipped;
+
+        public Result(String strategy, long bytes) {
+            this(strategy, bytes, 0);
+        }
+
+        public Result(String strategy, long bytes, long skipped) {
+            this.strategy = strategy;
+            this.bytes = bytes;
+            this.skipped = skipped;
+        }
+    }
+
+    public FileChannel openSource(Path source) throws IOException {
+        return FileChannel.open(source, StandardOpenOption.READ);
+    }
+
+    public FileChannel openTarget(Path target) throws IOException {
+        return FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public Result copy(Path source, Path target) throws IOException {
+        try (FileChannel in = openSource(source); FileChannel out = openTarget(target)) {
+            return copy(in, out);
+        }
+    }
+
+    /**
+     * Copies everything from the current position of in until EOF to the current position of out.
+     */
+    public Result copy(FileChannel in, FileChannel out) throws IOException {
+        long start = in.position();
+        long pos = start;
+        long size = in.size();
+
+        while (pos < size) {
+            long n = in.transferTo(pos, Math.min(size - pos, TRANSFER_CHUNK), out);
+            if (n <= 0) {
+                break;
+            }
+
+            pos += n;
+        }
+
+        long transferred = pos - start;
+        long buffered = copyBuffered(in, out, pos);
+
+        return new Result(transferred > 0 || buffered == 0 ? TRANSFER : BUFFERED, transferred + buffered);
+    }
+
+    /**
+     * Same as copy but every chunk is acquired from the limiter before it is transferred.
+     */
+    public Result copy(FileChannel in, FileChannel out, LPathRateLimiter limiter) throws IOException {
+        long start = in.position();
+        long pos = start;
+
+        try {
+            while (true) {
+                long size = in.size();
+                if (pos >= size) {
+                    break;
+                }
+
+                long chunk = Math.min(size - pos, THROTTLE_CHUNK);
+                limiter.acquire(chunk);
+                long n = in.transferTo(pos, chunk, out);
+                if (n <= 0) {
+                    break;
+                }
+
+                pos += n;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        return new Result(TRANSFER, pos - start);
+    }
+
+    /**
+     * Copies everything from position of in until EOF to out.
+     */
+    public long copyBuffered(FileChannel in, FileChannel out, long position) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        long total = 0;
+        while (true) {
+            buffer.clear();
+            int n = in.read(buffer, position + total);
+            if (n < 0) {
+                return total;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+
+            total += n;
+        }
+    }
+
+    /**
+     * Copies everything from the current position of in until EOF to the current position of out.
+     * Blocks that only contain zeros are skipped so that the target gets holes where the source has them.
+     * out must not contain data beyond its current position.
+     */
+    public Result copySparse(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        long start = in.position();
+        long outStart = out.position();
+        long pos = start;
+        long skipped = 0;
+
+        while (true) {
+            buffer.clear();
+            int n = in.read(buffer, pos);
+            if (n < 0) {
+                break;
+            }
+
+            int off = 0;
+            while (off < n) {
+                int len = Math.min(SPARSE_BLOCK, n - off);
+                if (isZero(buffer, off, len)) {
+                    skipped += len;
+                    off += len;
+                    continue;
+                }
+
+                //Write all consecutive data blocks at once
+                int end = off + len;
+                while (end < n) {
+                    len = Math.min(SPARSE_BLOCK, n - end);
+                    if (isZero(buffer, end, len)) {
+                        break;
+                    }
+                    end += len;
+                }
+
+                ByteBuffer data = buffer.duplicate();
+                data.limit(end).position(off);
+                long wpos = outStart + (pos - start) + off;
+                while (data.hasRemaining()) {
+                    wpos += out.write(data, wpos);
+                }
+
+                off = end;
+            }
+
+            pos += n;
+        }
+
+        long total = pos - start;
+        long end = outStart + total;
+        if (total > 0 && out.size() < end) {
+            //Trailing hole, FileChannel cannot extend a file without writing.
+            out.write(ByteBuffer.wrap(new byte[1]), end - 1);
+            skipped--;
+        }
+
+        out.position(end);
+        return new Result(SPARSE, total, skipped);
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int off, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            if (buffer.getLong(off + i) != 0) {
+                return false;
+            }
+        }
+
+        for (; i < len; i++) {
+            if (buffer.get(off + i) != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
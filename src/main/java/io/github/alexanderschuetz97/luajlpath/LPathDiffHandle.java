@@ -0,0 +1,129 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.io.IOException;
+
+/**
+ * Iterator returned by fs.diff.
+ *
+ * Calling it returns the next difference. The diff keeps two directories open per level of the current path,
+ * they are released when the iteration reaches the end or fails. A loop that stops early must call :close(),
+ * luaj does not run __gc.
+ */
+public class LPathDiffHandle {
+
+    private static final LuaValue METATABLE = createMetaTable();
+
+    private final String path;
+    private final LPathErrors errors;
+    //null once closed
+    private LPathTreeDiff diff;
+
+    public LPathDiffHandle(String path, LPathTreeDiff diff, LPathErrors errors) {
+        this.path = path;
+        this.diff = diff;
+        this.errors = errors;
+    }
+
+    public LuaUserdata toUserdata() {
+        return new LuaUserdata(this, METATABLE);
+    }
+
+    public boolean isClosed() {
+        return diff == null;
+    }
+
+    /**
+     * returns event, relative path and type of the next difference or nothing at the end.
+     */
+    public Varargs next() {
+        LPathTreeDiff current = diff;
+        if (current == null) {
+            return LuaValue.NONE;
+        }
+
+        try {
+            LPathTreeDiff.Event event = current.next();
+            if (event == null) {
+                close();
+                return LuaValue.NONE;
+            }
+
+            return LuaValue.varargsOf(LuaValue.valueOf(event.event), LuaValue.valueOf(event.path), LuaValue.valueOf(event.type));
+        } catch (IOException e) {
+            close();
+            throw new LuaError(errors.err("diff:" + path, e).arg(2).tojstring());
+        }
+    }
+
+    public void close() {
+        LPathTreeDiff current = diff;
+        diff = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+
+    private static LPathDiffHandle self(Varargs args) {
+        return (LPathDiffHandle) args.checkuserdata(1, LPathDiffHandle.class);
+    }
+
+    private static LuaValue createMetaTable() {
+        LuaTable index = new LuaTable();
+        index.set("close", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                self(args).close();
+                return TRUE;
+            }
+        });
+
+        LuaTable meta = new LuaTable();
+        meta.set(LuaValue.INDEX, index);
+        meta.set(LuaValue.CALL, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                //The generic for passes state and control, neither is needed.
+                return self(args).next();
+            }
+        });
+        meta.set(LuaValue.TOSTRING, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathDiffHandle handle = self(args);
+                return valueOf("diff (" + (handle.isClosed() ? "closed" : handle.path) + ")");
+            }
+        });
+
+        return meta;
+    }
+}
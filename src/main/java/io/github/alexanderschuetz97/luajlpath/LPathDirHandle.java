@@ -0,0 +1,274 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Open directory returned by fs.opendir.
+ *
+ * :read(n, tbl) stores up to n entries in the parallel arrays tbl.names and tbl.types so that a scan
+ * costs one call into java per batch instead of one call and one varargs per entry, and the same table can be reused
+ * for every batch. Entries of a previous batch beyond the current one are cleared.
+ * The directory stays open until it was read completely, a read fails or :close() is called.
+ * A scan that stops early must call :close(), luaj does not run __gc.
+ */
+public class LPathDirHandle {
+
+    private static final LuaValue METATABLE = createMetaTable();
+
+    private static final LuaValue NAMES = LuaValue.valueOf("names");
+    private static final LuaValue TYPES = LuaValue.valueOf("types");
+    private static final LuaValue DIR = LuaValue.valueOf("dir");
+    private static final LuaValue FILE = LuaValue.valueOf("file");
+
+    /**
+     * The entries of a directory.
+     */
+    public abstract static class Source implements Closeable {
+        /**
+         * Advances to the next entry, returns false at the end.
+         */
+        protected abstract boolean next() throws IOException;
+
+        protected abstract String name();
+
+        /**
+         * returns true if the current entry is a directory or a link to one.
+         */
+        protected abstract boolean isDir() throws IOException;
+    }
+
+    private final String path;
+    private final LPathErrors errors;
+    //null once all entries were read
+    private Source source;
+    private boolean closed;
+
+    public LPathDirHandle(String path, Source source, LPathErrors errors) {
+        this.path = path;
+        this.source = source;
+        this.errors = errors;
+    }
+
+    public static Source of(final LPathDirWalker.Dir dir) {
+        final Iterator<Path> iterator = dir.iterator();
+        return new Source() {
+            private Path current;
+
+            @Override
+            protected boolean next() throws IOException {
+                try {
+                    if (!iterator.hasNext()) {
+                        return false;
+                    }
+                    current = iterator.next();
+                } catch (DirectoryIteratorException e) {
+                    throw e.getCause();
+                }
+
+                return true;
+            }
+
+            @Override
+            protected String name() {
+                return current.toString();
+            }
+
+            @Override
+            protected boolean isDir() {
+                try {
+                    return dir.attributes(current, BasicFileAttributes.class, true).isDirectory();
+                } catch (IOException e) {
+                    //Vanished or dangling link
+                    return false;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                dir.close();
+            }
+        };
+    }
+
+    public static Source of(List<LuaPath> children) {
+        final Iterator<LuaPath> iterator = children.iterator();
+        return new Source() {
+            private LuaPath current;
+
+            @Override
+            protected boolean next() {
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+
+                current = iterator.next();
+                return true;
+            }
+
+            @Override
+            protected String name() {
+                return current.name();
+            }
+
+            @Override
+            protected boolean isDir() {
+                return current.isDir();
+            }
+
+            @Override
+            public void close() {
+                //Already read completely
+            }
+        };
+    }
+
+    public LuaUserdata toUserdata() {
+        return new LuaUserdata(this, METATABLE);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Fills tbl.names and tbl.types with up to n entries, returns the number of entries.
+     * The directory is released as soon as it has no entries left or the read failed, further reads return 0.
+     */
+    public int read(int n, LuaTable tbl) throws IOException {
+        if (closed) {
+            throw new LuaError("attempt to use a closed directory");
+        }
+
+        Source src = source;
+        LuaTable names = table(tbl, NAMES);
+        LuaTable types = table(tbl, TYPES);
+        int count = 0;
+        try {
+            while (src != null && count < n && src.next()) {
+                count++;
+                names.rawset(count, LuaValue.valueOf(src.name()));
+                types.rawset(count, src.isDir() ? DIR : FILE);
+            }
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+
+        for (int i = count + 1; !names.rawget(i).isnil(); i++) {
+            names.rawset(i, LuaValue.NIL);
+            types.rawset(i, LuaValue.NIL);
+        }
+
+        if (count < n) {
+            release();
+        }
+
+        return count;
+    }
+
+    public void close() {
+        closed = true;
+        release();
+    }
+
+    private void release() {
+        Source src = source;
+        source = null;
+        if (src != null) {
+            try {
+                src.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+
+    private static LuaTable table(LuaTable tbl, LuaValue key) {
+        LuaValue value = tbl.rawget(key);
+        if (value.istable()) {
+            return (LuaTable) value;
+        }
+
+        LuaTable result = new LuaTable();
+        tbl.rawset(key, result);
+        return result;
+    }
+
+    private static LPathDirHandle self(Varargs args) {
+        return (LPathDirHandle) args.checkuserdata(1, LPathDirHandle.class);
+    }
+
+    private static LuaValue createMetaTable() {
+        LuaTable index = new LuaTable();
+        index.set("read", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathDirHandle handle = self(args);
+                int n = args.optint(2, 256);
+                LuaTable tbl = args.isnoneornil(3) ? new LuaTable() : args.checktable(3);
+                if (n <= 0) {
+                    argerror(2, "n must be positive");
+                }
+
+                try {
+                    return varargsOf(valueOf(handle.read(n, tbl)), tbl);
+                } catch (IOException e) {
+                    return handle.errors.err("opendir:" + handle.path, e);
+                }
+            }
+        });
+
+        index.set("close", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                self(args).close();
+                return TRUE;
+            }
+        });
+
+        LuaTable meta = new LuaTable();
+        meta.set(LuaValue.INDEX, index);
+        meta.set(LuaValue.TOSTRING, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathDirHandle handle = self(args);
+                return valueOf("dir (" + (handle.isClosed() ? "closed" : handle.path) + ")");
+            }
+        });
+
+        return meta;
+    }
+}
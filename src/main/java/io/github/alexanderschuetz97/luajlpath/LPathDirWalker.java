@@ -0,0 +1,339 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Directory traversal relative to open directories.
+ *
+ * On Linux the jvm returns a SecureDirectoryStream for Files.newDirectoryStream. It keeps the directory fd open and
+ * implements stat/open/delete of its entries with fstatat/openat/unlinkat, so the kernel only resolves a single path
+ * component per call instead of the full path. Dir wraps this and falls back to plain paths where it is not available.
+ */
+public class LPathDirWalker {
+
+    private static final LinkOption[] FOLLOW = new LinkOption[0];
+    private static final LinkOption[] NOFOLLOW = new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+
+    /**
+     * Callback of walk, paths are relative to the root of the walk.
+     */
+    public interface Visitor {
+        FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) throws IOException;
+
+        FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) throws IOException;
+
+        FileVisitResult postVisitDirectory(Path relative) throws IOException;
+
+        /**
+         * Called instead of postVisitDirectory if the directory could not be opened after preVisitDirectory.
+         */
+        FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException;
+    }
+
+    /**
+     * Reads the attributes of an entry during a walk. Called exactly once per entry right before it is visited,
+     * so an implementation can read more than BasicFileAttributes in the same stat.
+     * dir is null for the root of the walk, name then is the root path.
+     */
+    public interface Attributes {
+        BasicFileAttributes read(Dir dir, Path name, boolean followLinks) throws IOException;
+    }
+
+    /**
+     * fstatat relative to the open directory.
+     */
+    public static final Attributes DIR_ATTRIBUTES = new Attributes() {
+        @Override
+        public BasicFileAttributes read(Dir dir, Path name, boolean followLinks) throws IOException {
+            if (dir == null) {
+                return Files.readAttributes(name, BasicFileAttributes.class, options(followLinks));
+            }
+
+            return dir.attributes(name, BasicFileAttributes.class, followLinks);
+        }
+    };
+
+    /**
+     * An open directory. Iterating it yields the names of its entries.
+     */
+    public static final class Dir implements Closeable, Iterable<Path> {
+        private final DirectoryStream<Path> stream;
+        //null if the platform has no SecureDirectoryStream
+        private final SecureDirectoryStream<Path> secure;
+        private final Path path;
+
+        private Dir(DirectoryStream<Path> stream, Path path) {
+            this.stream = stream;
+            this.secure = stream instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) stream : null;
+            this.path = path;
+        }
+
+        public static Dir open(Path path) throws IOException {
+            return new Dir(Files.newDirectoryStream(path), path);
+        }
+
+        public Dir openChild(Path name, boolean followLinks) throws IOException {
+            Path child = path.resolve(name);
+            if (secure != null) {
+                return new Dir(secure.newDirectoryStream(name, options(followLinks)), child);
+            }
+
+            return new Dir(Files.newDirectoryStream(child), child);
+        }
+
+        /**
+         * type must be BasicFileAttributes or PosixFileAttributes.
+         */
+        @SuppressWarnings("unchecked")
+        public <A extends BasicFileAttributes> A attributes(Path name, Class<A> type, boolean followLinks) throws IOException {
+            if (secure == null) {
+                return Files.readAttributes(path.resolve(name), type, options(followLinks));
+            }
+
+            if (type == PosixFileAttributes.class) {
+                return (A) secure.getFileAttributeView(name, PosixFileAttributeView.class, options(followLinks)).readAttributes();
+            }
+
+            return (A) secure.getFileAttributeView(name, BasicFileAttributeView.class, options(followLinks)).readAttributes();
+        }
+
+        /**
+         * Deletes a non directory entry. Fails with a FileSystemException if the entry is a directory.
+         */
+        public void deleteFile(Path name) throws IOException {
+            if (secure != null) {
+                secure.deleteFile(name);
+                return;
+            }
+
+            Files.delete(path.resolve(name));
+        }
+
+        public void deleteDirectory(Path name) throws IOException {
+            if (secure != null) {
+                secure.deleteDirectory(name);
+                return;
+            }
+
+            Files.delete(path.resolve(name));
+        }
+
+        /**
+         * returns the path this directory was opened with.
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public Iterator<Path> iterator() {
+            final Iterator<Path> delegate = stream.iterator();
+            return new Iterator<Path>() {
+                @Override
+                public boolean hasNext() {
+                    return delegate.hasNext();
+                }
+
+                @Override
+                public Path next() {
+                    return delegate.next().getFileName();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private static class Frame {
+        private final Dir dir;
+        private final Iterator<Path> iterator;
+        private final Path relative;
+        private final int depth;
+        private boolean skip;
+
+        private Frame(Dir dir, Path relative, int depth) {
+            this.dir = dir;
+            this.iterator = dir.iterator();
+            this.relative = relative;
+            this.depth = depth;
+        }
+    }
+
+    protected static LinkOption[] options(boolean followLinks) {
+        return followLinks ? FOLLOW : NOFOLLOW;
+    }
+
+    /**
+     * Walks the tree below root depth first, like Files.walkFileTree.
+     * Only one fd per level of the tree is open at any time.
+     * If links are followed every directory is only visited once (detected by its file key).
+     * Directories that cannot be opened are reported to visitDirectoryFailed.
+     * root itself is always followed (like find -H), a dangling link as root is visited as a file.
+     */
+    public void walk(Path root, int maxDepth, boolean followLinks, Visitor visitor) throws IOException {
+        walk(root, maxDepth, followLinks, DIR_ATTRIBUTES, visitor);
+    }
+
+    /**
+     * Same as walk but the attributes of every entry are read by attributes.
+     */
+    public void walk(Path root, int maxDepth, boolean followLinks, Attributes attributes, Visitor visitor) throws IOException {
+        Path empty = root.getFileSystem().getPath("");
+        BasicFileAttributes rootAttrs;
+        try {
+            rootAttrs = attributes.read(null, root, true);
+        } catch (NoSuchFileException e) {
+            rootAttrs = attributes.read(null, root, false);
+        }
+        if (!rootAttrs.isDirectory() || maxDepth <= 0) {
+            visitor.visitFile(empty, rootAttrs);
+            return;
+        }
+
+        Set<Object> visited = followLinks ? new HashSet<>() : null;
+        Deque<Frame> stack = new ArrayDeque<>();
+        try {
+            if (enter(stack, null, root, empty, rootAttrs, 0, followLinks, visited, visitor) == FileVisitResult.TERMINATE) {
+                return;
+            }
+
+            while (!stack.isEmpty()) {
+                Frame top = stack.peek();
+                if (top.skip || !top.iterator.hasNext()) {
+                    stack.pop().dir.close();
+                    if (visitor.postVisitDirectory(top.relative) == FileVisitResult.TERMINATE) {
+                        return;
+                    }
+
+                    continue;
+                }
+
+                Path name = top.iterator.next();
+                BasicFileAttributes attrs = readEntry(top.dir, name, followLinks, attributes);
+                if (attrs == null) {
+                    continue;
+                }
+
+                Path relative = top.relative.resolve(name);
+                FileVisitResult result;
+                if (attrs.isDirectory() && top.depth + 1 < maxDepth) {
+                    result = enter(stack, top.dir, name, relative, attrs, top.depth + 1, followLinks, visited, visitor);
+                } else {
+                    result = visitor.visitFile(relative, attrs);
+                }
+
+                if (result == FileVisitResult.TERMINATE) {
+                    return;
+                }
+
+                if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    top.skip = true;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        } finally {
+            for (Frame frame : stack) {
+                try {
+                    frame.dir.close();
+                } catch (IOException e) {
+                    //DC
+                }
+            }
+        }
+    }
+
+    /**
+     * returns null if the entry vanished.
+     */
+    private static BasicFileAttributes readEntry(Dir dir, Path name, boolean followLinks, Attributes attributes) throws IOException {
+        try {
+            return attributes.read(dir, name, followLinks);
+        } catch (NoSuchFileException e) {
+            if (!followLinks) {
+                return null;
+            }
+        } catch (IOException e) {
+            if (!followLinks) {
+                throw e;
+            }
+        }
+
+        //Dangling or unreadable link target, report the link itself.
+        try {
+            return attributes.read(dir, name, false);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static FileVisitResult enter(Deque<Frame> stack, Dir parent, Path name, Path relative, BasicFileAttributes attrs, int depth,
+                                         boolean followLinks, Set<Object> visited, Visitor visitor) throws IOException {
+        if (visited != null) {
+            Object key = attrs.fileKey();
+            if (key != null && !visited.add(key)) {
+                return FileVisitResult.CONTINUE;
+            }
+        }
+
+        FileVisitResult result = visitor.preVisitDirectory(relative, attrs);
+        if (result != FileVisitResult.CONTINUE) {
+            return result;
+        }
+
+        Dir dir;
+        try {
+            dir = parent == null ? Dir.open(name) : parent.openChild(name, followLinks);
+        } catch (IOException e) {
+            return visitor.visitDirectoryFailed(relative, e);
+        }
+
+        stack.push(new Frame(dir, relative, depth));
+        return FileVisitResult.CONTINUE;
+    }
+}
@@ -0,0 +1,187 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sums up apparent size and allocated bytes of a tree per directory.
+ * Symbolic links are not followed and files with several hard links are only counted once.
+ */
+public class LPathDiskUsage {
+
+    private final LPathDirWalker walker;
+
+    public LPathDiskUsage(LPathDirWalker walker) {
+        this.walker = walker;
+    }
+
+    /**
+     * Reads the attributes and the allocation of a single entry with one stat.
+     */
+    public interface Stat {
+        /**
+         * Fills info with the values of the entry and returns its attributes.
+         * dir is null for the root, name then is the root path.
+         */
+        BasicFileAttributes stat(LPathDirWalker.Dir dir, Path name, boolean followLinks, Info info) throws Exception;
+    }
+
+    public static class Info {
+        public long size;
+        //bytes allocated on disk
+        public long allocated;
+        public long dev;
+        public long ino;
+        public long nlink;
+    }
+
+    /**
+     * Only knows what the walk already provides, nothing is allocated sparsely and there are no hard links.
+     */
+    public static final Stat BASIC = new Stat() {
+        @Override
+        public BasicFileAttributes stat(LPathDirWalker.Dir dir, Path name, boolean followLinks, Info info) throws IOException {
+            BasicFileAttributes attrs = LPathDirWalker.DIR_ATTRIBUTES.read(dir, name, followLinks);
+            info.size = attrs.size();
+            info.allocated = attrs.size();
+            info.dev = 0;
+            info.ino = 0;
+            info.nlink = 1;
+            return attrs;
+        }
+    };
+
+    public static class Usage {
+        public long size;
+        public long allocated;
+        public long files;
+        public long dirs;
+
+        private void add(Usage other) {
+            size += other.size;
+            allocated += other.allocated;
+            files += other.files;
+            dirs += other.dirs;
+        }
+    }
+
+    /**
+     * returns the usage of root (".") and of every directory that is at most depth levels below it, keyed by the
+     * relative path. The usage of a directory includes everything below it.
+     */
+    public Map<String, Usage> du(final Path root, final int depth, final Stat stat) throws IOException {
+        final Map<String, Usage> result = new LinkedHashMap<>();
+        final Deque<Usage> stack = new ArrayDeque<>();
+        //inodes of files with more than one link per device
+        final Map<Long, LPathLongHashSet> seen = new HashMap<>();
+        final Info info = new Info();
+
+        //info always belongs to the entry that is visited next
+        LPathDirWalker.Attributes attributes = new LPathDirWalker.Attributes() {
+            @Override
+            public BasicFileAttributes read(LPathDirWalker.Dir dir, Path name, boolean followLinks) throws IOException {
+                try {
+                    return stat.stat(dir, name, followLinks, info);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException((dir == null ? name : dir.getPath().resolve(name)).toString(), e);
+                }
+            }
+        };
+
+        walker.walk(root, Integer.MAX_VALUE, false, attributes, new LPathDirWalker.Visitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+                Usage usage = new Usage();
+                usage.size = info.size;
+                usage.allocated = info.allocated;
+                if (!stack.isEmpty()) {
+                    usage.dirs = 1;
+                }
+
+                stack.push(usage);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) {
+                if (info.nlink > 1 && !attrs.isDirectory()) {
+                    LPathLongHashSet inodes = seen.get(info.dev);
+                    if (inodes == null) {
+                        inodes = new LPathLongHashSet();
+                        seen.put(info.dev, inodes);
+                    }
+
+                    if (!inodes.add(info.ino)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+
+                Usage usage = stack.isEmpty() ? new Usage() : stack.peek();
+                usage.size += info.size;
+                usage.allocated += info.allocated;
+                if (attrs.isDirectory()) {
+                    //Directory that could not be opened
+                    usage.dirs++;
+                } else {
+                    usage.files++;
+                }
+
+                if (stack.isEmpty()) {
+                    result.put(".", usage);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path relative) {
+                Usage usage = stack.pop();
+                if (stack.size() <= depth) {
+                    result.put(stack.isEmpty() ? "." : relative.toString(), usage);
+                }
+
+                if (!stack.isEmpty()) {
+                    stack.peek().add(usage);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                //Not readable, visit it as empty
+                return postVisitDirectory(relative);
+            }
+        });
+
+        return result;
+    }
+}
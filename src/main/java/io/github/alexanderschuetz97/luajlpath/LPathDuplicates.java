@@ -0,0 +1,279 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds files with identical content.
+ *
+ * The candidates are narrowed down in stages so that most files are never read:
+ * files are grouped by the size from the walk, groups with more than one file are split by a hash of the
+ * first and last 64 KiB and only what is left after that is hashed completely.
+ * The hashing of each stage runs on the worker pool. Hard links to the same file count as one file.
+ */
+public class LPathDuplicates {
+
+    //bytes hashed at the start and at the end of a file in the partial stage
+    public static final int ENDS = 64 << 10;
+
+    private final LPathHasher hasher;
+    private final LPathDirWalker walker;
+    private final LPathWorkerPool workers;
+
+    public LPathDuplicates(LPathHasher hasher, LPathDirWalker walker, LPathWorkerPool workers) {
+        this.hasher = hasher;
+        this.walker = walker;
+        this.workers = workers;
+    }
+
+    public static class Options {
+        //smaller files are ignored, empty files are all equal and rarely interesting
+        public long minSize = 1;
+        public int maxOpenFiles = 64;
+    }
+
+    public static class File {
+        //index of the root the file was found in
+        public final int root;
+        public final Path relative;
+        public final Path path;
+        public final long size;
+        private volatile String hash;
+
+        private File(int root, Path relative, Path path, long size) {
+            this.root = root;
+            this.relative = relative;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    public static class Group {
+        public final long size;
+        //sha256 of the content
+        public final String hash;
+        public final List<File> files;
+
+        private Group(long size, String hash, List<File> files) {
+            this.size = size;
+            this.hash = hash;
+            this.files = files;
+        }
+    }
+
+    public static class Result {
+        public final List<Group> groups = new ArrayList<>();
+        //regular files that were considered
+        public long files;
+
+        private String failedName;
+        private Exception failure;
+
+        public String getFailedName() {
+            return failedName;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+
+    private static final Comparator<Group> BY_SIZE = new Comparator<Group>() {
+        @Override
+        public int compare(Group a, Group b) {
+            return Long.compare(b.size, a.size);
+        }
+    };
+
+    private static final Comparator<File> BY_PATH = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            return a.path.compareTo(b.path);
+        }
+    };
+
+    public Result find(List<Path> roots, final Options options) throws IOException {
+        final Result result = new Result();
+        final Map<Long, List<File>> bySize = new HashMap<>();
+        final Set<Object> keys = new HashSet<>();
+
+        for (int i = 0; i < roots.size(); i++) {
+            final int index = i;
+            final Path root = roots.get(i);
+            walker.walk(root, Integer.MAX_VALUE, false, new LPathDirWalker.Visitor() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || attrs.size() < options.minSize) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    Object key = attrs.fileKey();
+                    if (key != null && !keys.add(key)) {
+                        //Hard link or overlapping roots
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    result.files++;
+                    List<File> group = bySize.get(attrs.size());
+                    if (group == null) {
+                        group = new ArrayList<>(2);
+                        bySize.put(attrs.size(), group);
+                    }
+
+                    group.add(new File(index, relative, root.resolve(relative), attrs.size()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path relative) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                    //Not readable, visit it as empty
+                    return postVisitDirectory(relative);
+                }
+            });
+        }
+
+        keys.clear();
+        List<List<File>> candidates = new ArrayList<>();
+        for (List<File> group : bySize.values()) {
+            if (group.size() > 1) {
+                candidates.add(group);
+            }
+        }
+        bySize.clear();
+
+        candidates = stage(candidates, LPathHasher.XXH64, true, options, result);
+        if (result.failure == null) {
+            candidates = stage(candidates, LPathHasher.SHA256, false, options, result);
+        }
+
+        if (result.failure != null) {
+            return result;
+        }
+
+        for (List<File> files : candidates) {
+            Collections.sort(files, BY_PATH);
+            result.groups.add(new Group(files.get(0).size, files.get(0).hash, files));
+        }
+
+        Collections.sort(result.groups, BY_SIZE);
+        return result;
+    }
+
+    /**
+     * Hashes every file of the groups and splits each group by the hash. Groups that end up with a single file are dropped.
+     * If ends is true, groups of files no larger than both ends are passed on unhashed, the full stage reads them only once.
+     */
+    private List<List<File>> stage(List<List<File>> groups, final String algorithm, final boolean ends, Options options, Result result) throws IOException {
+        List<List<File>> next = new ArrayList<>();
+        if (ends) {
+            List<List<File>> large = new ArrayList<>();
+            for (List<File> group : groups) {
+                //All files of a group have the same size
+                if (group.get(0).size <= ENDS * 2L) {
+                    next.add(group);
+                } else {
+                    large.add(group);
+                }
+            }
+
+            groups = large;
+        }
+
+        LPathWorkerPool.Batch batch = workers.newBatch(options.maxOpenFiles, ENDS * 2L * options.maxOpenFiles);
+        try {
+            for (List<File> group : groups) {
+                for (final File file : group) {
+                    file.hash = null;
+                    batch.submit(ends ? Math.min(file.size, ENDS * 2L) : 0, new LPathWorkerPool.Task("duplicates:" + file.path) {
+                        @Override
+                        protected void run() throws Exception {
+                            try {
+                                file.hash = ends ? hasher.hashEnds(file.path, algorithm, ENDS) : hasher.hash(file.path, algorithm);
+                            } catch (NoSuchFileException e) {
+                                //Removed since the walk, it has no duplicates anymore
+                            }
+                        }
+                    });
+                }
+            }
+
+            batch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (batch.isFailed()) {
+            result.failedName = batch.getFailedName();
+            result.failure = batch.getFailure();
+            return groups;
+        }
+
+        for (List<File> group : groups) {
+            Map<String, List<File>> byHash = new LinkedHashMap<>();
+            for (File file : group) {
+                if (file.hash == null) {
+                    continue;
+                }
+
+                List<File> split = byHash.get(file.hash);
+                if (split == null) {
+                    split = new ArrayList<>(2);
+                    byHash.put(file.hash, split);
+                }
+
+                split.add(file);
+            }
+
+            for (List<File> split : byHash.values()) {
+                if (split.size() > 1) {
+                    next.add(split);
+                }
+            }
+        }
+
+        return next;
+    }
+}
@@ -0,0 +1,338 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes file contents with a reusable direct buffer per thread.
+ *
+ * crc32c and xxh64 are implemented here because java 7 has neither (java.util.zip.CRC32C is java 9+).
+ */
+public class LPathHasher {
+
+    public static final String CRC32C = "crc32c";
+    public static final String SHA256 = "sha256";
+    public static final String XXH64 = "xxh64";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    /**
+     * Incremental hash function.
+     */
+    public abstract static class Digest {
+        /**
+         * Consumes the bytes between position and limit of the buffer. The buffer must be little endian.
+         */
+        public abstract void update(ByteBuffer buffer);
+
+        /**
+         * returns the hash as lowercase hex string.
+         */
+        public abstract String hex();
+    }
+
+    /**
+     * returns true if the algorithm is known.
+     */
+    public static boolean isSupported(String algorithm) {
+        return CRC32C.equals(algorithm) || SHA256.equals(algorithm) || XXH64.equals(algorithm);
+    }
+
+    public static Digest newDigest(String algorithm) {
+        switch (algorithm) {
+            case CRC32C:
+                return new Crc32c();
+            case SHA256:
+                return new Sha256();
+            case XXH64:
+                return new Xxh64();
+            default:
+                throw new IllegalArgumentException("unknown hash algorithm " + algorithm);
+        }
+    }
+
+    public String hash(Path path, String algorithm) throws IOException {
+        Digest digest = newDigest(algorithm);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+
+                buffer.flip();
+                digest.update(buffer);
+            }
+        }
+
+        return digest.hex();
+    }
+
+    /**
+     * Hashes the first and the last length bytes of a file, the whole file if it is shorter than 2*length.
+     */
+    public String hashEnds(Path path, String algorithm, int length) throws IOException {
+        Digest digest = newDigest(algorithm);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= 2L * length) {
+                update(channel, digest, buffer, 0, size);
+            } else {
+                update(channel, digest, buffer, 0, length);
+                update(channel, digest, buffer, size - length, length);
+            }
+        }
+
+        return digest.hex();
+    }
+
+    private static void update(FileChannel channel, Digest digest, ByteBuffer buffer, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+
+            position += n;
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    private static String hex(long value, int digits) {
+        StringBuilder sb = new StringBuilder(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            sb.append(Character.forDigit((int) (value >>> (i * 4)) & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static class Sha256 extends Digest {
+        private final MessageDigest md;
+
+        private Sha256() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                //Every jvm has to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @Override
+        public String hex() {
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : md.digest()) {
+                sb.append(LPathHasher.hex(b & 0xff, 2));
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Castagnoli crc, slicing by 8.
+     */
+    private static class Crc32c extends Digest {
+        private static final int[][] TABLE = new int[8][256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int k = 0; k < 8; k++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[0][i] = crc;
+            }
+
+            for (int i = 0; i < 256; i++) {
+                for (int t = 1; t < 8; t++) {
+                    int prev = TABLE[t - 1][i];
+                    TABLE[t][i] = (prev >>> 8) ^ TABLE[0][prev & 0xff];
+                }
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+            int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+            int c = crc;
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            for (; pos + 8 <= limit; pos += 8) {
+                int lo = buffer.getInt(pos) ^ c;
+                int hi = buffer.getInt(pos + 4);
+                c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                        ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff] ^ t0[hi >>> 24];
+            }
+
+            for (; pos < limit; pos++) {
+                c = (c >>> 8) ^ t0[(c ^ buffer.get(pos)) & 0xff];
+            }
+
+            buffer.position(limit);
+            crc = c;
+        }
+
+        @Override
+        public String hex() {
+            return LPathHasher.hex(~crc & 0xffffffffL, 8);
+        }
+    }
+
+    /**
+     * xxHash64 with seed 0.
+     */
+    private static class Xxh64 extends Digest {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+
+        private long v1 = P1 + P2;
+        private long v2 = P2;
+        private long v3 = 0;
+        private long v4 = -P1;
+        private long total;
+
+        //bytes that did not fill a 32 byte stripe yet
+        private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            total += limit - pos;
+
+            if (pending.position() > 0) {
+                while (pending.hasRemaining() && pos < limit) {
+                    pending.put(buffer.get(pos++));
+                }
+
+                if (pending.hasRemaining()) {
+                    buffer.position(limit);
+                    return;
+                }
+
+                stripe(pending, 0);
+                pending.clear();
+            }
+
+            for (; pos + 32 <= limit; pos += 32) {
+                stripe(buffer, pos);
+            }
+
+            while (pos < limit) {
+                pending.put(buffer.get(pos++));
+            }
+
+            buffer.position(limit);
+        }
+
+        private void stripe(ByteBuffer buffer, int pos) {
+            v1 = round(v1, buffer.getLong(pos));
+            v2 = round(v2, buffer.getLong(pos + 8));
+            v3 = round(v3, buffer.getLong(pos + 16));
+            v4 = round(v4, buffer.getLong(pos + 24));
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * P2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * P1;
+        }
+
+        private static long merge(long acc, long value) {
+            acc ^= round(0, value);
+            return acc * P1 + P4;
+        }
+
+        @Override
+        public String hex() {
+            long h;
+            if (total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = merge(h, v1);
+                h = merge(h, v2);
+                h = merge(h, v3);
+                h = merge(h, v4);
+            } else {
+                h = P5;
+            }
+
+            h += total;
+
+            int pos = 0;
+            int limit = pending.position();
+            for (; pos + 8 <= limit; pos += 8) {
+                h ^= round(0, pending.getLong(pos));
+                h = Long.rotateLeft(h, 27) * P1 + P4;
+            }
+
+            if (pos + 4 <= limit) {
+                h ^= (pending.getInt(pos) & 0xffffffffL) * P1;
+                h = Long.rotateLeft(h, 23) * P2 + P3;
+                pos += 4;
+            }
+
+            for (; pos < limit; pos++) {
+                h ^= (pending.get(pos) & 0xff) * P5;
+                h = Long.rotateLeft(h, 11) * P1;
+            }
+
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            h ^= h >>> 32;
+            return LPathHasher.hex(h, 16);
+        }
+    }
+}
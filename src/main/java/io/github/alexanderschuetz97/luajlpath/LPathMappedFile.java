@@ -0,0 +1,295 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Read only view of a memory mapped file region returned by fs.mmap.
+ *
+ * Nothing is copied into the lua heap until a method asks for it, :sub, :byte and :lines only create LuaStrings for
+ * the bytes they return. Indices behave like the ones of the string library (1 based, negative counts from the end).
+ * The mapping is released by :close() or, if that is never called, once the jvm collects the buffer.
+ */
+public class LPathMappedFile {
+
+    private static final LuaValue METATABLE = createMetaTable();
+
+    private MappedByteBuffer buffer;
+    private final int length;
+
+    public LPathMappedFile(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.length = buffer.limit();
+    }
+
+    public LuaUserdata toUserdata() {
+        return new LuaUserdata(this, METATABLE);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isClosed() {
+        return buffer == null;
+    }
+
+    /**
+     * Copies the bytes between the 1 based inclusive indices i and j.
+     */
+    public LuaString sub(int i, int j) {
+        MappedByteBuffer buf = check();
+        int start = startIndex(i);
+        int end = endIndex(j);
+        if (start > end) {
+            return LuaValue.EMPTYSTRING;
+        }
+
+        byte[] bytes = new byte[end - start + 1];
+        for (int x = 0; x < bytes.length; x++) {
+            bytes[x] = buf.get(start - 1 + x);
+        }
+
+        return LuaString.valueUsing(bytes);
+    }
+
+    public Varargs bytes(int i, int j) {
+        MappedByteBuffer buf = check();
+        int start = startIndex(i);
+        int end = endIndex(j);
+        if (start > end) {
+            return LuaValue.NONE;
+        }
+
+        LuaValue[] values = new LuaValue[end - start + 1];
+        for (int x = 0; x < values.length; x++) {
+            values[x] = LuaValue.valueOf(buf.get(start - 1 + x) & 0xff);
+        }
+
+        return LuaValue.varargsOf(values);
+    }
+
+    /**
+     * Plain search for literal starting at the 1 based index init. returns start and end index or nil.
+     */
+    public Varargs find(LuaString literal, int init) {
+        MappedByteBuffer buf = check();
+        int start = init < 0 ? Math.max(length + init + 1, 1) : Math.max(init, 1);
+        if (start > length + 1) {
+            return LuaValue.NIL;
+        }
+
+        int n = literal.m_length;
+        if (n == 0) {
+            return LuaValue.varargsOf(LuaValue.valueOf(start), LuaValue.valueOf(start - 1));
+        }
+
+        byte first = literal.m_bytes[literal.m_offset];
+        int last = length - n;
+        outer:
+        for (int pos = start - 1; pos <= last; pos++) {
+            if (buf.get(pos) != first) {
+                continue;
+            }
+
+            for (int k = 1; k < n; k++) {
+                if (buf.get(pos + k) != literal.m_bytes[literal.m_offset + k]) {
+                    continue outer;
+                }
+            }
+
+            return LuaValue.varargsOf(LuaValue.valueOf(pos + 1), LuaValue.valueOf(pos + n));
+        }
+
+        return LuaValue.NIL;
+    }
+
+    /**
+     * returns an iterator over the lines of the mapping without the line terminator.
+     */
+    public LuaValue lines() {
+        check();
+        return new VarArgFunction() {
+            private int pos;
+
+            @Override
+            public Varargs invoke(Varargs args) {
+                MappedByteBuffer buf = check();
+                if (pos >= length) {
+                    return NIL;
+                }
+
+                int end = pos;
+                while (end < length && buf.get(end) != '\n') {
+                    end++;
+                }
+
+                byte[] bytes = new byte[end - pos];
+                for (int x = 0; x < bytes.length; x++) {
+                    bytes[x] = buf.get(pos + x);
+                }
+
+                pos = end + 1;
+                return LuaString.valueUsing(bytes);
+            }
+        };
+    }
+
+    /**
+     * Unmaps the file. The jdk has no public api for this so the buffers cleaner is invoked reflectively,
+     * if that is not possible the mapping is left to the garbage collector.
+     */
+    public void close() {
+        MappedByteBuffer buf = buffer;
+        buffer = null;
+        if (buf != null) {
+            unmap(buf);
+        }
+    }
+
+    private MappedByteBuffer check() {
+        MappedByteBuffer buf = buffer;
+        if (buf == null) {
+            throw new LuaError("attempt to use a closed mapping");
+        }
+
+        return buf;
+    }
+
+    private int startIndex(int i) {
+        if (i < 0) {
+            i = length + i + 1;
+        }
+
+        return Math.max(i, 1);
+    }
+
+    private int endIndex(int j) {
+        if (j < 0) {
+            j = length + j + 1;
+        }
+
+        return Math.min(j, length);
+    }
+
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            //java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+            return;
+        } catch (Exception e) {
+            //Fall through
+        }
+
+        try {
+            //java 7/8
+            Method cleaner = buf.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buf);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (Exception e) {
+            //Left to the gc
+        }
+    }
+
+    private static LPathMappedFile self(Varargs args) {
+        return (LPathMappedFile) args.checkuserdata(1, LPathMappedFile.class);
+    }
+
+    private static LuaValue createMetaTable() {
+        LuaTable index = new LuaTable();
+        index.set("len", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathMappedFile file = self(args);
+                file.check();
+                return valueOf(file.length);
+            }
+        });
+
+        index.set("sub", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return self(args).sub(args.optint(2, 1), args.optint(3, -1));
+            }
+        });
+
+        index.set("byte", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                int i = args.optint(2, 1);
+                return self(args).bytes(i, args.optint(3, i));
+            }
+        });
+
+        index.set("find", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return self(args).find(args.checkstring(2), args.optint(3, 1));
+            }
+        });
+
+        index.set("lines", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return self(args).lines();
+            }
+        });
+
+        index.set("close", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                self(args).close();
+                return TRUE;
+            }
+        });
+
+        LuaTable meta = new LuaTable();
+        meta.set(LuaValue.INDEX, index);
+        meta.set(LuaValue.LEN, index.get("len"));
+        meta.set(LuaValue.TOSTRING, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathMappedFile file = self(args);
+                return valueOf("mmap (" + (file.isClosed() ? "closed" : file.length + " bytes") + ")");
+            }
+        });
+
+        return meta;
+    }
+}
@@ -0,0 +1,61 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Thrown when a tree operation would copy a directory into itself. Maps to EINVAL like cp does.
+ */
+public class LPathNestedTreeException extends FileSystemException {
+
+    public LPathNestedTreeException(String source, String target) {
+        super(source, target, "Invalid argument");
+    }
+
+    /**
+     * throws if the real path of target is source or below it. target does not have to exist yet.
+     */
+    public static void check(Path source, Path target) throws IOException {
+        Path realSource = source.toRealPath();
+        if (realTarget(target.toAbsolutePath()).startsWith(realSource)) {
+            throw new LPathNestedTreeException(source.toString(), target.toString());
+        }
+    }
+
+    /**
+     * resolves the longest existing prefix of path and appends the rest lexically.
+     */
+    private static Path realTarget(Path path) throws IOException {
+        Path existing = path;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+
+        if (existing == null) {
+            return path.normalize();
+        }
+
+        return existing.toRealPath().resolve(existing.relativize(path)).normalize();
+    }
+}
@@ -0,0 +1,342 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Walks a tree in pages that can be resumed later, even by another process.
+ *
+ * Directories are listed in sorted order so that the position of the walk is fully described by the relative path of
+ * the last returned entry. The continuation token is that path hex encoded. Resuming lists the directories on that
+ * path again and continues behind it, entries that were added or removed in the meantime do not shift the position.
+ * Symbolic links are not followed.
+ *
+ * The token stores no listing, so every call lists and sorts all directories on the path of the token again.
+ * Paging through a directory with n entries thus reads it n / limit times, choose limit accordingly.
+ */
+public class LPathPageScanner {
+
+    public static class Entry {
+        public final String relative;
+        public final boolean dir;
+        public final boolean link;
+
+        private Entry(String relative, BasicFileAttributes attrs) {
+            this.relative = relative;
+            this.dir = attrs.isDirectory();
+            this.link = attrs.isSymbolicLink();
+        }
+    }
+
+    public static class Page {
+        public final List<Entry> entries;
+        //null if the walk is complete
+        public final String token;
+
+        private Page(List<Entry> entries, String token) {
+            this.entries = entries;
+            this.token = token;
+        }
+    }
+
+    private static class Frame {
+        private final LPathDirWalker.Dir dir;
+        private final Path relative;
+        private final Path[] names;
+        private int index;
+
+        private Frame(LPathDirWalker.Dir dir, Path relative, Path[] names) {
+            this.dir = dir;
+            this.relative = relative;
+            this.names = names;
+        }
+    }
+
+    /**
+     * returns up to limit entries that follow the position of token, a null token starts at the beginning.
+     * throws IllegalArgumentException if the token is malformed.
+     */
+    public Page scan(Path root, int limit, String token) throws IOException {
+        Deque<Frame> stack = new ArrayDeque<>();
+        List<Entry> entries = new ArrayList<>();
+        Path last = null;
+        try {
+            Path relative = root.getFileSystem().getPath("");
+            push(stack, LPathDirWalker.Dir.open(root), relative);
+
+            if (token != null) {
+                //Rebuild the stack of the walk position
+                Path[] components = decode(root, token);
+                for (int i = 0; i < components.length; i++) {
+                    Frame top = stack.peek();
+                    Path name = components[i];
+                    top.index = upperBound(top.names, name);
+                    relative = relative.resolve(name);
+                    if (top.index == 0 || !top.names[top.index - 1].equals(name)) {
+                        //Removed since, continue behind its name
+                        break;
+                    }
+
+                    if (i == components.length - 1) {
+                        //The last returned entry, its contents come next if it is a directory
+                        descend(stack, top, name, relative);
+                        break;
+                    }
+
+                    LPathDirWalker.Dir child = openDirectory(top.dir, name);
+                    if (child == null) {
+                        break;
+                    }
+                    push(stack, child, relative);
+                }
+                last = relative;
+            }
+
+            while (!stack.isEmpty() && entries.size() < limit) {
+                Frame top = stack.peek();
+                if (top.index >= top.names.length) {
+                    stack.pop().dir.close();
+                    continue;
+                }
+
+                Path name = top.names[top.index++];
+                BasicFileAttributes attrs;
+                try {
+                    attrs = top.dir.attributes(name, BasicFileAttributes.class, false);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                last = top.relative.resolve(name);
+                entries.add(new Entry(last.toString(), attrs));
+                if (attrs.isDirectory()) {
+                    LPathDirWalker.Dir child = openDirectory(top.dir, name);
+                    if (child != null) {
+                        push(stack, child, last);
+                    }
+                }
+            }
+
+            //Pop exhausted frames so that a finished walk does not return a token
+            while (!stack.isEmpty() && stack.peek().index >= stack.peek().names.length) {
+                stack.pop().dir.close();
+            }
+
+            return new Page(entries, stack.isEmpty() || last == null ? null : encode(root, last));
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        } finally {
+            for (Frame frame : stack) {
+                try {
+                    frame.dir.close();
+                } catch (IOException e) {
+                    //DC
+                }
+            }
+        }
+    }
+
+    private static void descend(Deque<Frame> stack, Frame top, Path name, Path relative) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = top.dir.attributes(name, BasicFileAttributes.class, false);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        if (attrs.isDirectory()) {
+            LPathDirWalker.Dir child = openDirectory(top.dir, name);
+            if (child != null) {
+                push(stack, child, relative);
+            }
+        }
+    }
+
+    /**
+     * returns null if the directory vanished or cannot be read, it is then treated as empty.
+     */
+    private static LPathDirWalker.Dir openDirectory(LPathDirWalker.Dir parent, Path name) {
+        try {
+            return parent.openChild(name, false);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void push(Deque<Frame> stack, LPathDirWalker.Dir dir, Path relative) throws IOException {
+        List<Path> names = new ArrayList<>();
+        try {
+            for (Path name : dir) {
+                names.add(name);
+            }
+        } catch (RuntimeException e) {
+            dir.close();
+            throw e;
+        }
+
+        Path[] sorted = names.toArray(new Path[names.size()]);
+        Arrays.sort(sorted);
+        stack.push(new Frame(dir, relative, sorted));
+    }
+
+    /**
+     * returns the index of the first name that is greater than name.
+     */
+    private static int upperBound(Path[] names, Path name) {
+        int low = 0;
+        int high = names.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (names[mid].compareTo(name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * The components of the path separated by NUL which cannot be part of a file name, hex encoded.
+     */
+    static String encode(Path root, Path relative) {
+        StringBuilder sb = new StringBuilder();
+        Path path = root;
+        for (Path component : relative) {
+            if (sb.length() > 0) {
+                sb.append("00");
+            }
+
+            path = path.resolve(component);
+            for (byte b : nameBytes(path)) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    static Path[] decode(Path root, String token) {
+        if (token.isEmpty() || token.length() % 2 != 0) {
+            throw new IllegalArgumentException("malformed token");
+        }
+
+        byte[] bytes = new byte[token.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(token.charAt(2 * i), 16);
+            int lo = Character.digit(token.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("malformed token");
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+
+        List<Path> components = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == 0) {
+                if (i == start) {
+                    throw new IllegalArgumentException("malformed token");
+                }
+                components.add(name(root, Arrays.copyOfRange(bytes, start, i)));
+                start = i + 1;
+            }
+        }
+
+        return components.toArray(new Path[components.size()]);
+    }
+
+    /**
+     * returns the file name of path as stored by the file system.
+     * toString() replaces bytes that are not valid in the platform charset, the file uri escapes them instead.
+     */
+    private static byte[] nameBytes(Path path) {
+        if (path.getFileSystem() != FileSystems.getDefault()) {
+            return path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        String raw = path.toUri().getRawPath();
+        int end = raw.endsWith("/") ? raw.length() - 1 : raw.length();
+        int start = raw.lastIndexOf('/', end - 1) + 1;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = start; i < end; i++) {
+            char c = raw.charAt(i);
+            if (c == '%') {
+                baos.write((Character.digit(raw.charAt(i + 1), 16) << 4) | Character.digit(raw.charAt(i + 2), 16));
+                i += 2;
+            } else {
+                //Everything else the uri leaves unescaped is ascii
+                baos.write(c);
+            }
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * inverse of nameBytes.
+     */
+    private static Path name(Path root, byte[] bytes) {
+        for (byte b : bytes) {
+            if (b == '/') {
+                throw new IllegalArgumentException("malformed token");
+            }
+        }
+
+        Path path;
+        if (root.getFileSystem() != FileSystems.getDefault()) {
+            path = root.getFileSystem().getPath(new String(bytes, StandardCharsets.UTF_8));
+        } else {
+            StringBuilder sb = new StringBuilder("file:///");
+            for (byte b : bytes) {
+                sb.append('%');
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            path = Paths.get(URI.create(sb.toString()));
+        }
+
+        //. or .. would leave the directory
+        String name = path.getNameCount() == 1 ? path.getFileName().toString() : ".";
+        if (name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("malformed token");
+        }
+
+        return path.getFileName();
+    }
+}
@@ -0,0 +1,110 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Private (0700) per user directories inside shared locations like the tmp dir.
+ * Anybody can pre-create such a name, so the directory is only used if it is a real directory
+ * owned by the current user that nobody else can access.
+ */
+public class LPathPrivateDir {
+
+    private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+
+    private static volatile UserPrincipal currentUser;
+
+    private LPathPrivateDir() {
+    }
+
+    /**
+     * returns dir/prefix followed by the name of the current user. If create is true it is created if it is missing.
+     * returns null if it does not exist or cannot be made, if it is a link or if it is not private to the current user.
+     */
+    public static Path get(Path dir, String prefix, boolean create) {
+        UserPrincipal user = currentUser(dir);
+        if (user == null) {
+            return null;
+        }
+
+        Path privateDir = dir.resolve(prefix + user.getName());
+        if (create) {
+            try {
+                Files.createDirectory(privateDir, PosixFilePermissions.asFileAttribute(PRIVATE));
+            } catch (FileAlreadyExistsException e) {
+                //Checked below, whoever created it must be us
+            } catch (IOException | UnsupportedOperationException e) {
+                return null;
+            }
+        }
+
+        try {
+            PosixFileAttributes attrs = Files.readAttributes(privateDir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isDirectory() || !user.equals(attrs.owner()) || !PRIVATE.equals(attrs.permissions())) {
+                return null;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+
+        return privateDir;
+    }
+
+    /**
+     * returns true if path is owned by the current user, does not follow links.
+     */
+    public static boolean isOwned(Path path) {
+        UserPrincipal user = currentUser(path);
+        try {
+            return user != null && user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * returns the user this jvm runs as or null if it cannot be determined.
+     */
+    private static UserPrincipal currentUser(Path any) {
+        UserPrincipal user = currentUser;
+        if (user != null) {
+            return user;
+        }
+
+        try {
+            user = any.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+
+        currentUser = user;
+        return user;
+    }
+}
@@ -0,0 +1,65 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the average throughput of several threads to a number of bytes per second.
+ * Every acquire reserves its bytes at the end of the schedule and sleeps until the reservation starts,
+ * so a single large acquire delays the following ones instead of the current one.
+ */
+public class LPathRateLimiter {
+
+    private final long bytesPerSecond;
+
+    //nanoTime at which the next reservation starts
+    private long next;
+
+    public LPathRateLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.next = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (next < now) {
+                next = now;
+            }
+
+            wait = next - now;
+            next += (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
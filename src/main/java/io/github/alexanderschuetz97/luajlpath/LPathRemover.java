@@ -0,0 +1,203 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes directory trees in parallel on a fork join pool.
+ *
+ * Every directory is a task that deletes its files, forks a task for every sub directory and deletes itself once
+ * all of them are done. Entries are deleted relative to the open directory (see LPathDirWalker.Dir).
+ */
+public class LPathRemover {
+
+    private final int parallelism;
+
+    private volatile ForkJoinPool pool;
+
+    public LPathRemover() {
+        //unlink is latency bound so there is no point in limiting this to the amount of cpus.
+        this(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    public LPathRemover(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public static class Result {
+        public final AtomicLong files = new AtomicLong();
+        public final AtomicLong dirs = new AtomicLong();
+
+        private Path errorPath;
+        private IOException error;
+
+        /**
+         * returns the path of the first error or null.
+         */
+        public synchronized Path getErrorPath() {
+            return errorPath;
+        }
+
+        /**
+         * returns the first error or null.
+         */
+        public synchronized IOException getError() {
+            return error;
+        }
+
+        synchronized void fail(Path path, IOException e) {
+            if (error == null) {
+                errorPath = path;
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Deletes root and everything below it. Symbolic links are deleted, never followed.
+     * Errors do not stop the removal of unrelated entries, only the first error is recorded in the result.
+     */
+    public Result remove(Path root) {
+        Result result = new Result();
+        try {
+            if (!Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+                Files.delete(root);
+                result.files.incrementAndGet();
+                return result;
+            }
+        } catch (IOException e) {
+            result.fail(root, e);
+            return result;
+        }
+
+        getPool().invoke(new DirTask(result, null, root, root));
+        return result;
+    }
+
+    protected ForkJoinPool getPool() {
+        ForkJoinPool current = pool;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism);
+            }
+
+            return pool;
+        }
+    }
+
+    private static class DirTask extends RecursiveAction {
+        private final Result result;
+        //null if the directory has to be opened by its path
+        private final LPathDirWalker.Dir parent;
+        //relative to parent if parent is not null
+        private final Path name;
+        private final Path path;
+
+        private DirTask(Result result, LPathDirWalker.Dir parent, Path name, Path path) {
+            this.result = result;
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirTask> children = new ArrayList<>();
+            LPathDirWalker.Dir dir;
+            try {
+                dir = parent == null ? LPathDirWalker.Dir.open(path) : parent.openChild(name, false);
+            } catch (IOException e) {
+                result.fail(path, e);
+                return;
+            }
+
+            try {
+                for (Path entry : dir) {
+                    Path entryPath = path.resolve(entry);
+                    try {
+                        dir.deleteFile(entry);
+                        result.files.incrementAndGet();
+                    } catch (NoSuchFileException e) {
+                        //Someone else was faster
+                    } catch (FileSystemException e) {
+                        //Avoids a stat for every file, only entries that fail to unlink are checked for being a directory
+                        if (!isDirectory(dir, entry)) {
+                            result.fail(entryPath, e);
+                            continue;
+                        }
+
+                        children.add(new DirTask(result, dir, entry, entryPath));
+                    } catch (IOException e) {
+                        result.fail(entryPath, e);
+                    }
+                }
+
+                invokeAll(children);
+            } catch (DirectoryIteratorException e) {
+                result.fail(path, e.getCause());
+            } finally {
+                try {
+                    dir.close();
+                } catch (IOException e) {
+                    //DC
+                }
+            }
+
+            try {
+                if (parent != null) {
+                    parent.deleteDirectory(name);
+                } else {
+                    Files.delete(path);
+                }
+
+                result.dirs.incrementAndGet();
+            } catch (NoSuchFileException e) {
+                //Someone else was faster
+            } catch (IOException e) {
+                result.fail(path, e);
+            }
+        }
+
+        private static boolean isDirectory(LPathDirWalker.Dir dir, Path name) {
+            try {
+                return dir.attributes(name, BasicFileAttributes.class, false).isDirectory();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One way mirror of a directory tree.
+ *
+ * The source is walked on the calling thread, directories and symbolic links are created right away and files that
+ * are new or changed are copied on the worker pool. Every file is copied into a temporary file next to the target
+ * and renamed over it so the target never contains a partially written file.
+ */
+public class LPathSyncer {
+
+    /**
+     * Prefix of the temporary files. Entries with this prefix are never deleted as extraneous because they may
+     * belong to copies that are still running.
+     */
+    public static final String TMP_PREFIX = ".luajlpath-sync-";
+
+    private static final LinkOption[] NOFOLLOW = new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+
+    private final LPathCopier copier;
+    private final LPathHasher hasher;
+    private final LPathDirWalker walker;
+    private final LPathWorkerPool workers;
+    private final LPathRemover remover;
+
+    public LPathSyncer(LPathCopier copier, LPathHasher hasher, LPathDirWalker walker, LPathWorkerPool workers, LPathRemover remover) {
+        this.copier = copier;
+        this.hasher = hasher;
+        this.walker = walker;
+        this.workers = workers;
+        this.remover = remover;
+    }
+
+    public static class Options {
+        //compare content hashes instead of size and modification time
+        public boolean checksum;
+        //delete entries of the target that do not exist in the source
+        public boolean delete;
+        public int maxOpenFiles = 64;
+        public long maxInFlightBytes = 64L << 20;
+        //bytes per second for all copies together, 0 for no limit
+        public long rate;
+    }
+
+    public static class Result {
+        public final AtomicLong copied = new AtomicLong();
+        public final AtomicLong skipped = new AtomicLong();
+        public final AtomicLong deleted = new AtomicLong();
+        public final AtomicLong bytes = new AtomicLong();
+        public long dirs;
+
+        private String failedName;
+        private Exception failure;
+
+        /**
+         * returns the name of the operation that failed first or null.
+         */
+        public String getFailedName() {
+            return failedName;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+
+    public Result sync(final Path source, final Path target, Options options) throws IOException {
+        final Result result = new Result();
+        final boolean checksum = options.checksum;
+        final boolean delete = options.delete;
+        final LPathRateLimiter limiter = options.rate > 0 ? new LPathRateLimiter(options.rate) : null;
+        final LPathWorkerPool.Batch batch = workers.newBatch(options.maxOpenFiles, options.maxInFlightBytes);
+        //names of the source entries of every directory on the current path
+        final Deque<Set<Path>> names = new ArrayDeque<>();
+
+        //The root itself may be a link, the walk below opens it following links as well.
+        BasicFileAttributes rootAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+        if (!rootAttrs.isDirectory()) {
+            submit(batch, result, source, target, rootAttrs, readAttributes(target), checksum, limiter);
+            await(batch, result, source);
+            return result;
+        }
+
+        LPathNestedTreeException.check(source, target);
+
+        try {
+            walker.walk(source, Integer.MAX_VALUE, false, new LPathDirWalker.Visitor() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) throws IOException {
+                    if (batch.isFailed()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    add(relative);
+                    Path dir = target.resolve(relative);
+                    BasicFileAttributes existing = readAttributes(dir);
+                    if (existing != null && !existing.isDirectory()) {
+                        Files.delete(dir);
+                        existing = null;
+                    }
+
+                    if (existing == null) {
+                        Files.createDirectory(dir);
+                        result.dirs++;
+                    }
+
+                    names.push(new HashSet<Path>());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) throws IOException {
+                    if (batch.isFailed()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    add(relative);
+                    Path src = source.resolve(relative);
+                    Path dst = target.resolve(relative);
+                    BasicFileAttributes existing = readAttributes(dst);
+                    if (attrs.isSymbolicLink()) {
+                        Path link = Files.readSymbolicLink(src);
+                        if (existing != null && existing.isSymbolicLink() && link.equals(Files.readSymbolicLink(dst))) {
+                            result.skipped.incrementAndGet();
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        removeExisting(dst, existing, result);
+                        Files.createSymbolicLink(dst, link);
+                        result.copied.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    if (!attrs.isRegularFile()) {
+                        //devices, fifos and sockets are not mirrored
+                        result.skipped.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    if (existing != null && !existing.isRegularFile()) {
+                        removeExisting(dst, existing, result);
+                        existing = null;
+                    }
+
+                    submit(batch, result, src, dst, attrs, existing, checksum, limiter);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path relative) throws IOException {
+                    Set<Path> present = names.pop();
+                    if (delete && !batch.isFailed()) {
+                        deleteExtraneous(target.resolve(relative), present, result);
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                    names.pop();
+                    if (e instanceof NoSuchFileException) {
+                        //Removed since, the next sync deletes its mirror
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    //Treating it as empty would delete the whole mirrored subtree
+                    throw e;
+                }
+
+                private void add(Path relative) {
+                    if (!names.isEmpty()) {
+                        names.peek().add(relative.getFileName());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            batch.fail("sync:" + source, e);
+        } finally {
+            await(batch, result, source);
+        }
+
+        return result;
+    }
+
+    private void await(LPathWorkerPool.Batch batch, Result result, Path source) throws InterruptedIOException {
+        try {
+            batch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (batch.isFailed()) {
+            result.failedName = batch.getFailedName();
+            result.failure = batch.getFailure();
+        }
+    }
+
+    private void submit(LPathWorkerPool.Batch batch, final Result result, final Path src, final Path dst, final BasicFileAttributes attrs,
+                        final BasicFileAttributes existing, final boolean checksum, final LPathRateLimiter limiter) throws IOException {
+        if (existing != null && existing.size() == attrs.size()) {
+            if (!checksum && existing.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                result.skipped.incrementAndGet();
+                return;
+            }
+        }
+
+        try {
+            batch.submit(attrs.size(), new LPathWorkerPool.Task("sync:" + src) {
+                @Override
+                protected void run() throws Exception {
+                    if (checksum && existing != null && existing.size() == attrs.size()
+                            && hasher.hash(src, LPathHasher.XXH64).equals(hasher.hash(dst, LPathHasher.XXH64))) {
+                        if (!existing.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                            //Same content, the next run without checksum must not copy it again.
+                            Files.setLastModifiedTime(dst, attrs.lastModifiedTime());
+                        }
+
+                        result.skipped.incrementAndGet();
+                        return;
+                    }
+
+                    long bytes = copy(src, dst, attrs.lastModifiedTime(), limiter);
+                    result.copied.incrementAndGet();
+                    result.bytes.addAndGet(bytes);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Copies src into a temporary file next to dst and renames it to dst.
+     */
+    private long copy(Path src, Path dst, FileTime mtime, LPathRateLimiter limiter) throws IOException {
+        Path tmp = Files.createTempFile(dst.getParent(), TMP_PREFIX, null);
+        try {
+            LPathCopier.Result copied;
+            try (FileChannel in = copier.openSource(src); FileChannel out = copier.openTarget(tmp)) {
+                copied = limiter == null ? copier.copy(in, out) : copier.copy(in, out, limiter);
+            }
+
+            try {
+                //createTempFile is owner only
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(src));
+            } catch (UnsupportedOperationException e) {
+                //Not posix
+            }
+
+            Files.setLastModifiedTime(tmp, mtime);
+            Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            return copied.bytes;
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private void deleteExtraneous(Path dir, Set<Path> present, Result result) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                Path name = child.getFileName();
+                if (present.contains(name) || name.toString().startsWith(TMP_PREFIX)) {
+                    continue;
+                }
+
+                removeExisting(child, readAttributes(child), result);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void removeExisting(Path path, BasicFileAttributes attrs, Result result) throws IOException {
+        if (attrs == null) {
+            return;
+        }
+
+        if (!attrs.isDirectory()) {
+            Files.deleteIfExists(path);
+            result.deleted.incrementAndGet();
+            return;
+        }
+
+        LPathRemover.Result removed = remover.remove(path);
+        if (removed.getError() != null) {
+            throw removed.getError();
+        }
+
+        result.deleted.addAndGet(removed.files.get() + removed.dirs.get());
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
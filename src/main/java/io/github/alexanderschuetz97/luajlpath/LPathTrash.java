@@ -0,0 +1,186 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes trees in the background.
+ *
+ * The tree is renamed into a private (0700) per user trash directory on the same file system, which is a single
+ * atomic rename, and then deleted by a daemon thread. The trash directories are made in the locations passed to init,
+ * a tree on a file system without such a location cannot be trashed. If the jvm exits before a deletion finished the
+ * leftovers are deleted by the next init.
+ */
+public class LPathTrash {
+
+    public static final String TRASH_PREFIX = ".luajlpath-trash-";
+
+    private static class Location {
+        private final Path dir;
+        private final FileStore store;
+
+        private Location(Path dir, FileStore store) {
+            this.dir = dir;
+            this.store = store;
+        }
+    }
+
+    private final LPathRemover remover;
+
+    private volatile List<Location> locations = Collections.emptyList();
+
+    private volatile ExecutorService executor;
+
+    public LPathTrash() {
+        //Background deletion should not compete with the interpreter for io.
+        this(new LPathRemover(2));
+    }
+
+    public LPathTrash(LPathRemover remover) {
+        this.remover = remover;
+    }
+
+    /**
+     * Sets the directories the trash directories are made in, at most one per file system is used.
+     * Schedules the deletion of everything that is left in their trash directories.
+     */
+    public void init(List<Path> dirs) {
+        List<Location> result = new ArrayList<>();
+        for (Path dir : dirs) {
+            try {
+                result.add(new Location(dir.toAbsolutePath(), Files.getFileStore(dir)));
+            } catch (IOException e) {
+                continue;
+            }
+
+            Path trashDir = LPathPrivateDir.get(dir, TRASH_PREFIX, false);
+            if (trashDir != null) {
+                reclaim(trashDir);
+            }
+        }
+
+        locations = result;
+    }
+
+    private void reclaim(Path trashDir) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashDir)) {
+            for (Path leftover : stream) {
+                schedule(leftover);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            //DC
+        }
+    }
+
+    /**
+     * Renames path into the trash directory of its file system and schedules its deletion.
+     * Throws AtomicMoveNotSupportedException if there is no trash directory on that file system
+     * and any error of the rename (ex: path is a mount point), nothing is left behind in these cases.
+     */
+    public Path trash(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path parent = absolute.getParent();
+        if (parent == null) {
+            throw new AtomicMoveNotSupportedException(path.toString(), null, "No parent directory");
+        }
+
+        FileStore store = Files.getFileStore(parent);
+        for (Location location : locations) {
+            if (!location.store.equals(store) || location.dir.startsWith(absolute)) {
+                continue;
+            }
+
+            Path trashDir = LPathPrivateDir.get(location.dir, TRASH_PREFIX, true);
+            if (trashDir == null) {
+                continue;
+            }
+
+            //One directory per removed tree so that equal names do not collide.
+            Path entry = Files.createTempDirectory(trashDir, null);
+            try {
+                Files.move(absolute, entry.resolve(absolute.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    Files.delete(entry);
+                } catch (IOException e1) {
+                    //DC
+                }
+                throw e;
+            }
+
+            schedule(entry);
+            return entry;
+        }
+
+        throw new AtomicMoveNotSupportedException(path.toString(), null, "No trash directory on this file system");
+    }
+
+    protected void schedule(final Path path) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                //Errors are dropped, the next init tries again.
+                remover.remove(path);
+            }
+        });
+    }
+
+    protected ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (executor == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "luajlpath-trash");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Lazy comparison of two directory trees.
+ *
+ * Both trees are walked in lockstep, each directory is listed and sorted once so a merge of the two listings yields
+ * the added, removed and common entries. Only the listings of the directories on the current path are kept
+ * so memory is bounded by the depth of the trees and not by their size.
+ * Directories that only exist on one side are reported as a single event and not descended into.
+ */
+public class LPathTreeDiff implements Closeable {
+
+    public static final String ADDED = "added";
+    public static final String REMOVED = "removed";
+    public static final String CHANGED = "changed";
+
+    /**
+     * Files differ if size or modification time differ.
+     */
+    public static final String META = "meta";
+
+    /**
+     * Files differ if the size differs, are equal if size and modification time are equal. Otherwise the content is compared.
+     */
+    public static final String AUTO = "auto";
+
+    /**
+     * Files differ if the size differs, otherwise the content is compared.
+     */
+    public static final String CONTENT = "content";
+
+    public static final String DIR = "dir";
+    public static final String FILE = "file";
+    public static final String LINK = "link";
+    public static final String OTHER = "other";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[] {ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE)};
+        }
+    };
+
+    public static boolean isMode(String mode) {
+        return META.equals(mode) || AUTO.equals(mode) || CONTENT.equals(mode);
+    }
+
+    public static class Event {
+        public final String event;
+        //relative to the roots
+        public final String path;
+        //type of the entry in b or in a for removed entries
+        public final String type;
+
+        public Event(String event, String path, String type) {
+            this.event = event;
+            this.path = path;
+            this.type = type;
+        }
+    }
+
+    private static class Frame {
+        private final LPathDirWalker.Dir a;
+        private final LPathDirWalker.Dir b;
+        private final Path relative;
+        private final Path[] namesA;
+        private final Path[] namesB;
+        private int ia;
+        private int ib;
+
+        private Frame(LPathDirWalker.Dir a, LPathDirWalker.Dir b, Path relative, Path[] namesA, Path[] namesB) {
+            this.a = a;
+            this.b = b;
+            this.relative = relative;
+            this.namesA = namesA;
+            this.namesB = namesB;
+        }
+
+        private void close() throws IOException {
+            try {
+                a.close();
+            } finally {
+                b.close();
+            }
+        }
+    }
+
+    private final Path rootA;
+    private final Path rootB;
+    private final String mode;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /**
+     * Opens the two root directories.
+     */
+    public LPathTreeDiff(Path a, Path b, String mode) throws IOException {
+        this.rootA = a;
+        this.rootB = b;
+        this.mode = mode;
+
+        LPathDirWalker.Dir dirA = LPathDirWalker.Dir.open(a);
+        LPathDirWalker.Dir dirB;
+        try {
+            dirB = LPathDirWalker.Dir.open(b);
+        } catch (IOException e) {
+            dirA.close();
+            throw e;
+        }
+
+        push(dirA, dirB, a.getFileSystem().getPath(""));
+    }
+
+    private void push(LPathDirWalker.Dir a, LPathDirWalker.Dir b, Path relative) throws IOException {
+        try {
+            stack.push(new Frame(a, b, relative, list(a), list(b)));
+        } catch (IOException | RuntimeException e) {
+            try {
+                a.close();
+            } finally {
+                b.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * returns the next difference or null if there are none left.
+     */
+    public Event next() throws IOException {
+        while (!stack.isEmpty()) {
+            Frame top = stack.peek();
+            boolean hasA = top.ia < top.namesA.length;
+            boolean hasB = top.ib < top.namesB.length;
+            if (!hasA && !hasB) {
+                stack.pop().close();
+                continue;
+            }
+
+            int cmp = !hasA ? 1 : !hasB ? -1 : top.namesA[top.ia].compareTo(top.namesB[top.ib]);
+            if (cmp < 0) {
+                Path name = top.namesA[top.ia++];
+                return new Event(REMOVED, top.relative.resolve(name).toString(), type(top.a.attributes(name, BasicFileAttributes.class, false)));
+            }
+
+            if (cmp > 0) {
+                Path name = top.namesB[top.ib++];
+                return new Event(ADDED, top.relative.resolve(name).toString(), type(top.b.attributes(name, BasicFileAttributes.class, false)));
+            }
+
+            Path name = top.namesA[top.ia++];
+            top.ib++;
+            Path relative = top.relative.resolve(name);
+            BasicFileAttributes attrsA = top.a.attributes(name, BasicFileAttributes.class, false);
+            BasicFileAttributes attrsB = top.b.attributes(name, BasicFileAttributes.class, false);
+            String typeA = type(attrsA);
+            String typeB = type(attrsB);
+            if (!typeA.equals(typeB)) {
+                return new Event(CHANGED, relative.toString(), typeB);
+            }
+
+            if (DIR.equals(typeA)) {
+                LPathDirWalker.Dir childA = top.a.openChild(name, false);
+                LPathDirWalker.Dir childB;
+                try {
+                    childB = top.b.openChild(name, false);
+                } catch (IOException e) {
+                    childA.close();
+                    throw e;
+                }
+
+                push(childA, childB, relative);
+                continue;
+            }
+
+            if (!same(relative, typeA, attrsA, attrsB)) {
+                return new Event(CHANGED, relative.toString(), typeA);
+            }
+        }
+
+        return null;
+    }
+
+    private boolean same(Path relative, String type, BasicFileAttributes attrsA, BasicFileAttributes attrsB) throws IOException {
+        Path a = rootA.resolve(relative);
+        Path b = rootB.resolve(relative);
+        if (LINK.equals(type)) {
+            return Files.readSymbolicLink(a).equals(Files.readSymbolicLink(b));
+        }
+
+        if (!FILE.equals(type)) {
+            return true;
+        }
+
+        if (attrsA.size() != attrsB.size()) {
+            return false;
+        }
+
+        boolean sameTime = attrsA.lastModifiedTime().equals(attrsB.lastModifiedTime());
+        if (META.equals(mode)) {
+            return sameTime;
+        }
+
+        if (sameTime && AUTO.equals(mode)) {
+            return true;
+        }
+
+        return sameContent(a, b);
+    }
+
+    /**
+     * Compares the content of two files of equal size, stops at the first differing chunk.
+     */
+    public static boolean sameContent(Path a, Path b) throws IOException {
+        ByteBuffer[] buffers = BUFFERS.get();
+        ByteBuffer bufA = buffers[0];
+        ByteBuffer bufB = buffers[1];
+        try (FileChannel inA = FileChannel.open(a, StandardOpenOption.READ); FileChannel inB = FileChannel.open(b, StandardOpenOption.READ)) {
+            long pos = 0;
+            while (true) {
+                bufA.clear();
+                bufB.clear();
+                int n = fill(inA, bufA, pos);
+                int m = fill(inB, bufB, pos);
+                if (n != m) {
+                    return false;
+                }
+
+                if (n <= 0) {
+                    return true;
+                }
+
+                bufA.flip();
+                bufB.flip();
+                if (!bufA.equals(bufB)) {
+                    return false;
+                }
+
+                pos += n;
+            }
+        }
+    }
+
+    private static int fill(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + total);
+            if (n < 0) {
+                break;
+            }
+
+            total += n;
+        }
+
+        return total;
+    }
+
+    private static String type(BasicFileAttributes attrs) {
+        if (attrs.isDirectory()) {
+            return DIR;
+        }
+
+        if (attrs.isRegularFile()) {
+            return FILE;
+        }
+
+        return attrs.isSymbolicLink() ? LINK : OTHER;
+    }
+
+    private static Path[] list(LPathDirWalker.Dir dir) throws IOException {
+        List<Path> names = new ArrayList<>();
+        try {
+            for (Path name : dir) {
+                names.add(name);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        Path[] result = names.toArray(new Path[names.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        while (!stack.isEmpty()) {
+            try {
+                stack.pop().close();
+            } catch (IOException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+
+        if (first != null) {
+            throw first;
+        }
+    }
+}
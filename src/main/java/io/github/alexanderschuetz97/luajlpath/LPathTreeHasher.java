@@ -0,0 +1,364 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merkle hash of a directory tree.
+ *
+ * The digest of a file is the hash of its content, the digest of a directory is the hash of the sorted list of
+ * (type, name, digest) of its entries. File digests are cached in a sidecar file keyed by the file key (dev/ino on
+ * unix), size and modification time so that files which did not change are not read again.
+ */
+public class LPathTreeHasher {
+
+    private static final int MAGIC = 0x4c505448; //LPTH
+    private static final int VERSION = 1;
+
+    //Files are hashed through a fixed size buffer so only the number of tasks needs a bound
+    private static final long MAX_IN_FLIGHT_BYTES = 64L << 20;
+
+    private static final byte TYPE_FILE = 'f';
+    private static final byte TYPE_DIR = 'd';
+    private static final byte TYPE_LINK = 'l';
+    private static final byte TYPE_OTHER = 'o';
+
+    private final LPathHasher hasher;
+    private final LPathDirWalker walker;
+    private final LPathWorkerPool workers;
+
+    public LPathTreeHasher(LPathHasher hasher, LPathDirWalker walker, LPathWorkerPool workers) {
+        this.hasher = hasher;
+        this.walker = walker;
+        this.workers = workers;
+    }
+
+    public static class Result {
+        public final String digest;
+        //relative path of every directory ("." for the root) to its digest
+        public final Map<String, String> dirs;
+        public final long hashed;
+        public final long cached;
+
+        public Result(String digest, Map<String, String> dirs, long hashed, long cached) {
+            this.digest = digest;
+            this.dirs = dirs;
+            this.hashed = hashed;
+            this.cached = cached;
+        }
+    }
+
+    private static class CacheEntry {
+        private final long size;
+        private final long mtime;
+        private final String hex;
+        //set while the file is hashed by the workers
+        private final Node node;
+
+        private CacheEntry(long size, long mtime, String hex, Node node) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hex = hex;
+            this.node = node;
+        }
+
+        private String hex() {
+            return hex != null ? hex : node.hex;
+        }
+    }
+
+    private static class Node {
+        private final byte[] name;
+        private final byte type;
+        private final String relative;
+        private List<Node> children;
+        private volatile String hex;
+
+        private Node(Path relative, byte type) {
+            Path fileName = relative.getFileName();
+            this.name = fileName == null ? new byte[0] : fileName.toString().getBytes(StandardCharsets.UTF_8);
+            this.type = type;
+            this.relative = relative.toString().isEmpty() ? "." : relative.toString();
+        }
+    }
+
+    private static final Comparator<Node> BY_NAME = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            int n = Math.min(a.name.length, b.name.length);
+            for (int i = 0; i < n; i++) {
+                int c = (a.name[i] & 0xff) - (b.name[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+
+            return a.name.length - b.name.length;
+        }
+    };
+
+    /**
+     * returns the default location of the cache for root in a private (0700) per user directory inside dir
+     * or null if no such directory can be made or the existing one is not owned by the current user.
+     */
+    public static Path defaultCacheFile(Path dir, Path root) {
+        Path cacheDir = LPathPrivateDir.get(dir, ".luajlpath-", true);
+        if (cacheDir == null) {
+            return null;
+        }
+
+        LPathHasher.Digest digest = LPathHasher.newDigest(LPathHasher.XXH64);
+        digest.update(ByteBuffer.wrap(root.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)).order(ByteOrder.LITTLE_ENDIAN));
+        return cacheDir.resolve("treehash-" + digest.hex());
+    }
+
+    /**
+     * Hashes the tree below root. cacheFile may be null to disable the cache.
+     */
+    public Result hash(final Path root, final String algorithm, Path cacheFile) throws IOException {
+        final Map<String, CacheEntry> cache = cacheFile == null ? Collections.<String, CacheEntry>emptyMap() : readCache(cacheFile, algorithm);
+        final Map<String, CacheEntry> seen = new HashMap<>();
+        final LPathWorkerPool.Batch batch = workers.newBatch(workers.getThreads(), MAX_IN_FLIGHT_BYTES);
+        final long[] counts = new long[2];
+        final Deque<Node> stack = new ArrayDeque<>();
+        final Node[] rootNode = new Node[1];
+
+        try {
+            walker.walk(root, Integer.MAX_VALUE, false, new LPathDirWalker.Visitor() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+                    Node node = new Node(relative, TYPE_DIR);
+                    node.children = new ArrayList<>();
+                    add(node);
+                    stack.push(node);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) throws IOException {
+                    final Path path = root.resolve(relative);
+                    if (attrs.isSymbolicLink()) {
+                        Node node = new Node(relative, TYPE_LINK);
+                        node.hex = hex(algorithm, Files.readSymbolicLink(path).toString().getBytes(StandardCharsets.UTF_8));
+                        add(node);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    if (!attrs.isRegularFile()) {
+                        Node node = new Node(relative, TYPE_OTHER);
+                        node.hex = hex(algorithm, new byte[0]);
+                        add(node);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    final Node node = new Node(relative, TYPE_FILE);
+                    add(node);
+
+                    Object fileKey = attrs.fileKey();
+                    String key = fileKey == null ? path.toAbsolutePath().toString() : fileKey.toString();
+                    long size = attrs.size();
+                    long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                    CacheEntry entry = cache.get(key);
+                    if (entry != null && entry.size == size && entry.mtime == mtime) {
+                        node.hex = entry.hex;
+                        seen.put(key, entry);
+                        counts[1]++;
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    CacheEntry pending = new CacheEntry(size, mtime, null, node);
+                    counts[0]++;
+                    try {
+                        batch.submit(0, new LPathWorkerPool.Task(path.toString()) {
+                            @Override
+                            protected void run() throws Exception {
+                                node.hex = hasher.hash(path, algorithm);
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+
+                    seen.put(key, pending);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path relative) {
+                    stack.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                    //Hashing it as empty would return a wrong digest and cache it
+                    throw e;
+                }
+
+                private void add(Node node) {
+                    if (stack.isEmpty()) {
+                        rootNode[0] = node;
+                    } else {
+                        stack.peek().children.add(node);
+                    }
+                }
+            });
+        } finally {
+            try {
+                batch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (batch.isFailed()) {
+            Exception e = batch.getFailure();
+            throw e instanceof IOException ? (IOException) e : new IOException(batch.getFailedName(), e);
+        }
+
+        Map<String, String> dirs = new LinkedHashMap<>();
+        String digest = digest(rootNode[0], algorithm, dirs);
+
+        if (cacheFile != null) {
+            writeCache(cacheFile, algorithm, seen);
+        }
+
+        return new Result(digest, dirs, counts[0], counts[1]);
+    }
+
+    private static String digest(Node node, String algorithm, Map<String, String> dirs) {
+        if (node.type != TYPE_DIR) {
+            return node.hex;
+        }
+
+        Collections.sort(node.children, BY_NAME);
+        LPathHasher.Digest digest = LPathHasher.newDigest(algorithm);
+        for (Node child : node.children) {
+            byte[] hex = digest(child, algorithm, dirs).getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer entry = ByteBuffer.allocate(child.name.length + hex.length + 3).order(ByteOrder.LITTLE_ENDIAN);
+            entry.put(child.type).put(child.name).put((byte) 0).put(hex).put((byte) '\n');
+            entry.flip();
+            digest.update(entry);
+        }
+
+        node.hex = digest.hex();
+        dirs.put(node.relative, node.hex);
+        return node.hex;
+    }
+
+    private static String hex(String algorithm, byte[] data) {
+        LPathHasher.Digest digest = LPathHasher.newDigest(algorithm);
+        digest.update(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN));
+        return digest.hex();
+    }
+
+    private static Map<String, CacheEntry> readCache(Path cacheFile, String algorithm) {
+        Map<String, CacheEntry> result = new HashMap<>();
+        //Somebody else could have planted it to make us report wrong hashes.
+        if (!LPathPrivateDir.isOwned(cacheFile)) {
+            return result;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile, LinkOption.NOFOLLOW_LINKS)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !algorithm.equals(in.readUTF())) {
+                return result;
+            }
+
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                result.put(key, new CacheEntry(size, mtime, in.readUTF(), null));
+            }
+        } catch (NoSuchFileException e) {
+            //First run
+        } catch (IOException e) {
+            //Corrupt cache, everything is hashed again
+            result.clear();
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the entries of all files that were part of this run so entries of removed files do not accumulate.
+     */
+    private static void writeCache(Path cacheFile, String algorithm, Map<String, CacheEntry> seen) {
+        Path tmp = null;
+        try {
+            //New file with a random name, never follows or truncates something that is already there.
+            tmp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName() + ".", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(algorithm);
+                out.writeInt(seen.size());
+                for (Map.Entry<String, CacheEntry> e : seen.entrySet()) {
+                    CacheEntry entry = e.getValue();
+                    String hex = entry.hex();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeUTF(hex == null ? "" : hex);
+                }
+            }
+
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //The cache is only an optimization
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e1) {
+                //DC
+            }
+        }
+    }
+}
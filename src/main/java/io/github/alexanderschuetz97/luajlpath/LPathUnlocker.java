@@ -0,0 +1,202 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds the owner write permission to every entry of a tree while walking it in parallel.
+ *
+ * Every directory is a fork join task. The entries are read with fstatat relative to the open directory
+ * (see LPathDirWalker.Dir) and only entries that lack the owner write permission are handed to the chmod callback.
+ * Symbolic links are never followed.
+ */
+public class LPathUnlocker {
+
+    /**
+     * Changes the mode of a single entry.
+     */
+    public interface Chmod {
+        void addOwnerWrite(Path path) throws Exception;
+    }
+
+    private final int parallelism;
+
+    private volatile ForkJoinPool pool;
+
+    public LPathUnlocker() {
+        this(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    public LPathUnlocker(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public static class Result {
+        public final AtomicLong changed = new AtomicLong();
+
+        private Path errorPath;
+        private Exception error;
+
+        /**
+         * returns the path of the first error or null.
+         */
+        public synchronized Path getErrorPath() {
+            return errorPath;
+        }
+
+        /**
+         * returns the first error or null.
+         */
+        public synchronized Exception getError() {
+            return error;
+        }
+
+        synchronized void fail(Path path, Exception e) {
+            if (error == null) {
+                errorPath = path;
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Unlocks root and everything below it. Directories that cannot be read are skipped,
+     * the first chmod that fails stops the walk and is returned as error.
+     */
+    public Result unlock(Path root, Chmod chmod) {
+        Result result = new Result();
+        try {
+            PosixFileAttributes attrs = Files.readAttributes(root, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.permissions().contains(PosixFilePermission.OWNER_WRITE)) {
+                chmod.addOwnerWrite(root);
+                result.changed.incrementAndGet();
+            }
+        } catch (Exception e) {
+            result.fail(root, e);
+            return result;
+        }
+
+        getPool().invoke(new DirTask(result, chmod, null, root, root));
+        return result;
+    }
+
+    protected ForkJoinPool getPool() {
+        ForkJoinPool current = pool;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism);
+            }
+
+            return pool;
+        }
+    }
+
+    private static class DirTask extends RecursiveAction {
+        private final Result result;
+        private final Chmod chmod;
+        //null if the directory has to be opened by its path
+        private final LPathDirWalker.Dir parent;
+        //relative to parent if parent is not null
+        private final Path name;
+        private final Path path;
+
+        private DirTask(Result result, Chmod chmod, LPathDirWalker.Dir parent, Path name, Path path) {
+            this.result = result;
+            this.chmod = chmod;
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            if (result.getError() != null) {
+                return;
+            }
+
+            List<DirTask> children = new ArrayList<>();
+            LPathDirWalker.Dir dir;
+            try {
+                dir = parent == null ? LPathDirWalker.Dir.open(path) : parent.openChild(name, false);
+            } catch (IOException e) {
+                //Unreadable or gone, skip it and carry on with the rest of the tree.
+                return;
+            }
+
+            try {
+                try {
+                    for (Path entry : dir) {
+                        Path entryPath = path.resolve(entry);
+                        PosixFileAttributes attrs;
+                        try {
+                            attrs = dir.attributes(entry, PosixFileAttributes.class, false);
+                        } catch (IOException e) {
+                            continue;
+                        }
+
+                        if (attrs.isSymbolicLink()) {
+                            continue;
+                        }
+
+                        if (!attrs.permissions().contains(PosixFilePermission.OWNER_WRITE)) {
+                            try {
+                                chmod.addOwnerWrite(entryPath);
+                                result.changed.incrementAndGet();
+                            } catch (Exception e) {
+                                result.fail(entryPath, e);
+                                break;
+                            }
+                        }
+
+                        if (attrs.isDirectory()) {
+                            children.add(new DirTask(result, chmod, dir, entry, entryPath));
+                        }
+                    }
+                } catch (DirectoryIteratorException e) {
+                    //Skip the rest of this directory, the subdirectories found so far are still unlocked.
+                }
+
+                invokeAll(children);
+            } finally {
+                try {
+                    dir.close();
+                } catch (IOException e) {
+                    //DC
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories for changes, returned by fs.watch.
+ *
+ * :poll(timeout) waits for the first change and then drains everything else that is already queued, the events of
+ * such a batch are coalesced per path: a file that is created and deleted again is not reported at all, one that is
+ * deleted and created again is reported as modified and so on. Recursive watches register new subdirectories as soon
+ * as their creation is seen, entries created in them before that are reported as created. After an overflow they
+ * register every directory below the overflowed one that is not watched yet. A directory that cannot be watched
+ * (permissions, inotify watch limit) is reported as an error event and the batch continues.
+ */
+public class LPathWatcher {
+
+    public static final int CREATE = 1;
+    public static final int MODIFY = 2;
+    public static final int DELETE = 4;
+
+    private static final LuaValue METATABLE = createMetaTable();
+
+    private static final LuaValue PATH = LuaValue.valueOf("path");
+    private static final LuaValue EVENT = LuaValue.valueOf("event");
+    private static final LuaValue ERROR = LuaValue.valueOf("error");
+
+    /**
+     * Turns the lua root and the path relative to it into the path reported to lua.
+     */
+    public interface Joiner {
+        LuaValue join(String root, String relative);
+    }
+
+    private static class Watched {
+        private final int root;
+        private final Path dir;
+
+        private Watched(int root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Coalesced state of a path within one batch.
+     */
+    private static class Change {
+        private final int root;
+        private final Path path;
+        //false if only an overflow or error was seen
+        private boolean changed;
+        private boolean existedBefore;
+        private boolean existsAfter;
+        private boolean overflow;
+        private String error;
+
+        private Change(int root, Path path) {
+            this.root = root;
+            this.path = path;
+        }
+    }
+
+    private final String[] luaRoots;
+    private final Path[] roots;
+    private final int mask;
+    private final boolean recursive;
+    private final Joiner joiner;
+    private final LPathErrors errors;
+    private final Map<WatchKey, Watched> keys = new HashMap<>();
+    //errors of subdirectories seen while the watch was created, reported by the first poll
+    private Map<Path, Change> pending = new LinkedHashMap<>();
+    private WatchService service;
+
+    /**
+     * mask is a combination of CREATE, MODIFY and DELETE. All roots must be directories of the same file system.
+     */
+    public LPathWatcher(String[] luaRoots, Path[] roots, int mask, boolean recursive, Joiner joiner, LPathErrors errors) throws IOException {
+        this.luaRoots = luaRoots;
+        this.roots = roots;
+        this.mask = mask;
+        this.recursive = recursive;
+        this.joiner = joiner;
+        this.errors = errors;
+
+        FileSystem fs = roots[0].getFileSystem();
+        service = fs.newWatchService();
+        try {
+            for (int i = 0; i < roots.length; i++) {
+                registerDirectory(i, roots[i]);
+                register(i, roots[i], pending, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    public LuaUserdata toUserdata() {
+        return new LuaUserdata(this, METATABLE);
+    }
+
+    public boolean isClosed() {
+        return service == null;
+    }
+
+    /**
+     * Registers the directories below dir for recursive watches, dir itself must already be registered.
+     * Directories that are already watched are skipped. Directories that cannot be watched are recorded as errors in
+     * changes. If created is true the entries below dir are added to changes as created.
+     */
+    private void register(final int root, final Path dir, final Map<Path, Change> changes, final boolean created) throws IOException {
+        if (!recursive) {
+            return;
+        }
+
+        //Below a directory that was just created nothing can be watched yet
+        final Set<Path> watched = new HashSet<>();
+        if (!created) {
+            for (Watched w : keys.values()) {
+                watched.add(w.dir);
+            }
+        }
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (!d.equals(dir)) {
+                    if (created) {
+                        change(changes, root, d, CREATE);
+                    }
+
+                    if (!watched.contains(d)) {
+                        try {
+                            registerDirectory(root, d);
+                        } catch (NoSuchFileException e) {
+                            //Removed again, its delete event is already queued
+                            return FileVisitResult.SKIP_SUBTREE;
+                        } catch (IOException e) {
+                            error(changes, root, d, e);
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (created) {
+                    change(changes, root, file, CREATE);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                if (exc instanceof NoSuchFileException) {
+                    //Removed again
+                    return FileVisitResult.CONTINUE;
+                }
+
+                if (created) {
+                    change(changes, root, file, CREATE);
+                }
+                //Not readable, neither it nor anything below it can be watched
+                error(changes, root, file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void registerDirectory(int root, Path dir) throws IOException {
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, new Watched(root, dir));
+    }
+
+    /**
+     * Waits up to timeout nanoseconds (forever if negative) for changes and returns the coalesced events
+     * of everything that is queued at that point, an empty table if nothing changed.
+     */
+    public LuaTable poll(long timeout) throws IOException {
+        LuaTable result = new LuaTable();
+        for (Event event : collect(timeout)) {
+            String relative = roots[event.root].relativize(event.path).toString();
+            LuaTable row = new LuaTable();
+            row.rawset(PATH, relative.isEmpty() ? LuaValue.valueOf(luaRoots[event.root]) : joiner.join(luaRoots[event.root], relative));
+            row.rawset(EVENT, LuaValue.valueOf(event.event));
+            if (event.error != null) {
+                row.rawset(ERROR, LuaValue.valueOf(event.error));
+            }
+            result.insert(0, row);
+        }
+
+        return result;
+    }
+
+    public static class Event {
+        public final int root;
+        public final Path path;
+        //create, modify, delete, overflow or error
+        public final String event;
+        //message of an error event
+        public final String error;
+
+        private Event(int root, Path path, String event, String error) {
+            this.root = root;
+            this.path = path;
+            this.event = event;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Same as poll but returns the events as java objects.
+     */
+    public List<Event> collect(long timeout) throws IOException {
+        WatchService ws = service;
+        if (ws == null) {
+            throw new LuaError("attempt to use a closed watch");
+        }
+
+        Map<Path, Change> changes = pending;
+        pending = new LinkedHashMap<>();
+        try {
+            WatchKey key = timeout < 0 ? ws.take() : ws.poll(timeout, TimeUnit.NANOSECONDS);
+            while (key != null) {
+                process(key, changes);
+                key = ws.poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            throw new LuaError("attempt to use a closed watch");
+        }
+
+        List<Event> result = new ArrayList<>();
+        for (Change change : changes.values()) {
+            if (change.error != null) {
+                result.add(new Event(change.root, change.path, "error", change.error));
+            }
+
+            String event;
+            int kind;
+            if (change.overflow) {
+                event = "overflow";
+                kind = -1;
+            } else if (!change.existedBefore && change.existsAfter) {
+                event = "create";
+                kind = CREATE;
+            } else if (change.existedBefore && !change.existsAfter) {
+                event = "delete";
+                kind = DELETE;
+            } else if (change.changed && change.existedBefore) {
+                event = "modify";
+                kind = MODIFY;
+            } else {
+                //Created and removed again or only an error
+                continue;
+            }
+
+            if ((kind & mask) != 0) {
+                result.add(new Event(change.root, change.path, event, null));
+            }
+        }
+
+        return result;
+    }
+
+    private void process(WatchKey key, Map<Path, Change> changes) throws IOException {
+        Watched watched = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (watched == null) {
+                continue;
+            }
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                get(changes, watched.root, watched.dir).overflow = true;
+                //Creations of subdirectories may be among the lost events
+                register(watched.root, watched.dir, changes, false);
+                continue;
+            }
+
+            Path path = watched.dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                change(changes, watched.root, path, CREATE);
+                if (recursive && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        registerDirectory(watched.root, path);
+                        register(watched.root, path, changes, true);
+                    } catch (NoSuchFileException e) {
+                        //Removed again, its delete event is already queued
+                    } catch (IOException e) {
+                        error(changes, watched.root, path, e);
+                    }
+                }
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                change(changes, watched.root, path, DELETE);
+            } else {
+                change(changes, watched.root, path, MODIFY);
+            }
+        }
+
+        if (!key.reset()) {
+            //Directory is gone
+            keys.remove(key);
+        }
+    }
+
+    private static Change get(Map<Path, Change> changes, int root, Path path) {
+        Change change = changes.get(path);
+        if (change == null) {
+            change = new Change(root, path);
+            changes.put(path, change);
+        }
+
+        return change;
+    }
+
+    private static void change(Map<Path, Change> changes, int root, Path path, int kind) {
+        Change change = get(changes, root, path);
+        if (!change.changed) {
+            change.changed = true;
+            change.existedBefore = kind != CREATE;
+        }
+
+        change.existsAfter = kind != DELETE;
+    }
+
+    private void error(Map<Path, Change> changes, int root, Path path, IOException e) {
+        get(changes, root, path).error = errors.err("watch:" + path, e).arg(2).tojstring();
+    }
+
+    public void close() {
+        WatchService ws = service;
+        service = null;
+        keys.clear();
+        if (ws != null) {
+            try {
+                ws.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+
+    private static LPathWatcher self(Varargs args) {
+        return (LPathWatcher) args.checkuserdata(1, LPathWatcher.class);
+    }
+
+    private static LuaValue createMetaTable() {
+        LuaTable index = new LuaTable();
+        index.set("poll", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathWatcher watcher = self(args);
+                double timeout = args.optdouble(2, 0);
+                try {
+                    return watcher.poll(timeout < 0 ? -1 : (long) (timeout * 1e9));
+                } catch (IOException e) {
+                    return watcher.errors.err("watch:" + watcher.luaRoots[0], e);
+                }
+            }
+        });
+
+        index.set("close", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                self(args).close();
+                return TRUE;
+            }
+        });
+
+        LuaTable meta = new LuaTable();
+        meta.set(LuaValue.INDEX, index);
+        meta.set(LuaValue.TOSTRING, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LPathWatcher watcher = self(args);
+                return valueOf("watch (" + (watcher.isClosed() ? "closed" : watcher.keys.size() + " directories") + ")");
+            }
+        });
+
+        return meta;
+    }
+}
@@ -0,0 +1,221 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lazily started pool of daemon threads that runs the file operations of the bulk fs functions.
+ *
+ * Work is submitted in batches. A batch limits how many tasks may be in flight at once (open files) and how many bytes
+ * those tasks may touch at once. The submitting thread blocks until both are available so that walking a huge tree
+ * never queues more work than the limits allow.
+ */
+public class LPathWorkerPool {
+
+    private static final int KIB = 1024;
+
+    private final int threads;
+
+    private volatile ExecutorService executor;
+
+    public LPathWorkerPool() {
+        this(Math.max(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public LPathWorkerPool(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * A unit of work. The name is used as the prefix of the error message if run fails.
+     */
+    public abstract static class Task {
+        protected final String name;
+
+        protected Task(String name) {
+            this.name = name;
+        }
+
+        protected abstract void run() throws Exception;
+    }
+
+    public class Batch {
+        private final Semaphore openFiles;
+        private final Semaphore inFlight;
+        private final int maxKib;
+
+        private final Object lock = new Object();
+        private int outstanding;
+        private String failedName;
+        private Exception failure;
+
+        private Batch(int maxOpenFiles, long maxInFlightBytes) {
+            this.maxKib = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / KIB));
+            this.openFiles = new Semaphore(Math.max(1, maxOpenFiles));
+            this.inFlight = new Semaphore(maxKib);
+        }
+
+        /**
+         * Blocks until the limits of the batch permit running the task then queues it.
+         * Tasks submitted after a task has failed are not run.
+         */
+        public void submit(long bytes, final Task task) throws InterruptedException {
+            if (isFailed()) {
+                return;
+            }
+
+            final int kib = (int) Math.max(1, Math.min(maxKib, (bytes + KIB - 1) / KIB));
+            openFiles.acquire();
+            try {
+                inFlight.acquire(kib);
+            } catch (InterruptedException e) {
+                openFiles.release();
+                throw e;
+            }
+
+            synchronized (lock) {
+                outstanding++;
+            }
+
+            try {
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!isFailed()) {
+                                task.run();
+                            }
+                        } catch (Exception e) {
+                            fail(task.name, e);
+                        } finally {
+                            inFlight.release(kib);
+                            openFiles.release();
+                            done();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release(kib);
+                openFiles.release();
+                done();
+                throw e;
+            }
+        }
+
+        /**
+         * Records a failure that happened outside of a task, no further tasks of this batch will run.
+         */
+        public void fail(String name, Exception e) {
+            synchronized (lock) {
+                if (failure == null) {
+                    failedName = name;
+                    failure = e;
+                }
+            }
+        }
+
+        public boolean isFailed() {
+            synchronized (lock) {
+                return failure != null;
+            }
+        }
+
+        /**
+         * Waits until all submitted tasks have finished.
+         */
+        public void await() throws InterruptedException {
+            synchronized (lock) {
+                while (outstanding > 0) {
+                    lock.wait();
+                }
+            }
+        }
+
+        /**
+         * returns the name of the first task that failed or null.
+         */
+        public String getFailedName() {
+            synchronized (lock) {
+                return failedName;
+            }
+        }
+
+        /**
+         * returns the exception of the first task that failed or null.
+         */
+        public Exception getFailure() {
+            synchronized (lock) {
+                return failure;
+            }
+        }
+
+        private void done() {
+            synchronized (lock) {
+                outstanding--;
+                if (outstanding == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public Batch newBatch(int maxOpenFiles, long maxInFlightBytes) {
+        return new Batch(maxOpenFiles, maxInFlightBytes);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    protected ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (executor == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "luajlpath-worker-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+                //Idle interpreters should not keep threads around.
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+
+            return executor;
+        }
+    }
+}
@@ -27,26 +27,43 @@ import io.github.alexanderschuetz97.nativeutils.api.exceptions.PermissionDeniedE
 import io.github.alexanderschuetz97.nativeutils.api.exceptions.UnknownNativeErrorException;
 import io.github.alexanderschuetz97.nativeutils.api.structs.Stat;
 import io.github.alexanderschuetz97.nativeutils.api.structs.Utsname;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystemLoopException;
 import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.NotLinkException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.luaj.vm2.LuaValue.FALSE;
 import static org.luaj.vm2.LuaValue.*;
@@ -58,14 +75,63 @@ import static org.luaj.vm2.LuaValue.varargsOf;
  */
 public class LinuxLPathImpl extends JsePosixLPathImpl {
 
+    protected static final LuaString DIR = valueOf("dir");
+    protected static final LuaString FILE = valueOf("file");
+
+    protected static final int S_IFMT = 0170000;
+    protected static final int S_IFDIR = 0040000;
+    protected static final int S_IFREG = 0100000;
+    protected static final int S_IFLNK = 0120000;
+
     protected final LinuxNativeUtil nativeUtil = NativeUtils.getLinuxUtil();
 
+    protected final LinuxMountTable mountTable = new LinuxMountTable();
+
+    protected final LPathUnlocker unlocker = new LPathUnlocker();
+
     @Override
     protected LuaValue info_getOS() {
         return LINUX;
     }
 
     protected Varargs lib_fs_ismount(Varargs args) {
+        LuaPath file;
+        try {
+            //Links have to be resolved before the lookup, a lexical normalize would fold link/.. the wrong way
+            file = u_resolvePath(args).realPath().absolutePath();
+        } catch (IOException e) {
+            return FALSE;
+        }
+
+        Path syspath = file.toSystemPath();
+        if (syspath == null) {
+            return FALSE;
+        }
+
+        syspath = syspath.toAbsolutePath();
+
+        try {
+            if (!mountTable.isMountPoint(syspath)) {
+                return FALSE;
+            }
+        } catch (IOException e) {
+            //mountinfo not readable (no procfs?)
+            return u_ismountStat(args);
+        }
+
+        Path psyspath = syspath.getParent();
+        LuaPath parent = psyspath == null ? null : handler.resolveSysPath(psyspath);
+        if (parent == null) {
+            return valueOf(file.toString());
+        }
+
+        return valueOf(parent.toString());
+    }
+
+    /**
+     * ismount without the mount table by comparing the device of the path with its parent.
+     */
+    protected Varargs u_ismountStat(Varargs args) {
         try {
             LuaPath file = u_resolvePath(args).realPath().absolutePath();
 
@@ -95,6 +161,33 @@ public class LinuxLPathImpl extends JsePosixLPathImpl {
         return FALSE;
     }
 
+    @Override
+    protected Varargs lib_fs_mountof(Varargs args) {
+        Path syspath = u_resolvePath(args).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_mountof(args);
+        }
+
+        LinuxMountTable.Mount mount;
+        try {
+            mount = mountTable.mountOf(syspath.toRealPath());
+        } catch (IOException e) {
+            return super.lib_fs_mountof(args);
+        }
+
+        if (mount == null) {
+            return super.lib_fs_mountof(args);
+        }
+
+        LuaPath mountPoint = handler.resolveSysPath(Paths.get(mount.mountPoint));
+        if (mountPoint == null) {
+            //Mount point is outside of what the file system handler exposes
+            return super.lib_fs_mountof(args);
+        }
+
+        return varargsOf(valueOf(mountPoint.toString()), u_valueOfStr(mount.fsType), u_valueOfStr(mount.source));
+    }
+
 
     protected Varargs lib_fs_binpath(Varargs args) {
         try {
@@ -264,76 +357,356 @@ public class LinuxLPathImpl extends JsePosixLPathImpl {
     }
 
     @Override
-    protected Varargs lib_fs_unlockdirs(Varargs args) {
-        FastLuaString fs = u_concat_path(args);
-        String js = fs.toString();
+    protected Varargs lib_fs_ctime(Varargs args) {
+        String path = args.checkjstring(1);
+        Path syspath = u_resolvePath(path).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_ctime(args);
+        }
 
-        LuaPath file = u_resolvePath(js);
-        if (!file.exists()) {
-            return u_err("unlockdirs:" + js +":(errno=2): No such file or directory");
+        try {
+            //Same as lpath.c this is the status change time on posix.
+            return valueOf(nativeUtil.stat(syspath.toAbsolutePath().toString()).getCtime());
+        } catch (UnknownNativeErrorException | IOException | InvalidPathException e) {
+            return u_err("touch:" + path, e);
         }
-        if (!file.isDir()) {
-            return u_err("unlockdirs:" + js +":(errno=20): Not a directory");
+    }
+
+    @Override
+    protected Varargs lib_fs_mtime(Varargs args) {
+        String path = args.checkjstring(1);
+        Path syspath = u_resolvePath(path).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_mtime(args);
         }
 
-        Path syspath = file.toSystemPath();
+        try {
+            return valueOf(nativeUtil.stat(syspath.toAbsolutePath().toString()).getMtime());
+        } catch (UnknownNativeErrorException | IOException | InvalidPathException e) {
+            return u_err("touch:" + path, e);
+        }
+    }
+
+    @Override
+    protected Varargs lib_fs_atime(Varargs args) {
+        String path = args.checkjstring(1);
+        Path syspath = u_resolvePath(path).toSystemPath();
         if (syspath == null) {
-            return TRUE;
+            return super.lib_fs_atime(args);
+        }
+
+        try {
+            return valueOf(nativeUtil.stat(syspath.toAbsolutePath().toString()).getAtime());
+        } catch (UnknownNativeErrorException | IOException | InvalidPathException e) {
+            return u_err("touch:" + path, e);
+        }
+    }
+
+    //The methods below do not check anything before doing the actual syscall.
+    //Whatever the kernel complains about is mapped back to the lpath error message.
+
+    @Override
+    protected Varargs lib_fs_mkdir(Varargs args) {
+        FastLuaString string = u_concat_path(args);
+        String jString = string.toString();
+        Path syspath = u_resolvePath(jString).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_mkdir(args);
+        }
+
+        try {
+            Files.createDirectory(syspath);
+        } catch (FileAlreadyExistsException e) {
+            //This even returns if its a file...
+            return string;
+        } catch (IOException | InvalidPathException e) {
+            return u_err("mkdir:" + jString, e);
+        }
+
+        return string;
+    }
+
+    @Override
+    protected Varargs lib_fs_rmdir(Varargs args) {
+        FastLuaString string = u_concat_path(args);
+        String jString = string.toString();
+        Path syspath = u_resolvePath(jString).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_rmdir(args);
+        }
+
+        Path parent = syspath.getParent();
+        Path name = syspath.getFileName();
+        if (parent == null || name == null) {
+            return super.lib_fs_rmdir(args);
         }
 
-        final Set<Path> thePaths = new HashSet<>();
+        //Files.delete would lstat first and then unlink a file, unlinkat with AT_REMOVEDIR is a single syscall that refuses files.
+        try (LPathDirWalker.Dir dir = LPathDirWalker.Dir.open(parent)) {
+            dir.deleteDirectory(name);
+        } catch (DirectoryNotEmptyException | NoSuchFileException | AccessDeniedException e) {
+            return u_err("rmdir:" + jString, e);
+        } catch (FileSystemException e) {
+            //ENOTDIR has no exception of its own, only stat when the rmdir already failed.
+            if (!Files.isDirectory(syspath, LinkOption.NOFOLLOW_LINKS)) {
+                return u_err("rmdir:" + jString +":(errno=20): Not a directory");
+            }
+
+            return u_err("rmdir:" + jString, e);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("rmdir:" + jString, e);
+        }
+
+        return string;
+    }
+
+    @Override
+    protected Varargs lib_fs_remove(Varargs args) {
+        FastLuaString string = u_concat_path(args);
+        String jString = string.toString();
+        Path syspath = u_resolvePath(jString).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_remove(args);
+        }
+
+        try {
+            Files.delete(syspath);
+        } catch (IOException | InvalidPathException e) {
+            return u_err("remove:" + jString, e);
+        }
+
+        return string;
+    }
+
+    @Override
+    protected Varargs lib_fs_makedirs(Varargs args) {
+        FastLuaString string = u_concat_path(args);
+        String jString = string.toString();
+        Path syspath = u_resolvePath(jString).toSystemPath();
+        if (syspath == null) {
+            return super.lib_fs_makedirs(args);
+        }
 
         try {
-            Files.walkFileTree(syspath, OPTIONS, Integer.MAX_VALUE, new FileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    if (!thePaths.add(dir)) {
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-                    return FileVisitResult.CONTINUE;
+            u_makedirs(syspath.toAbsolutePath(), null);
+        } catch (FileAlreadyExistsException e) {
+            //This even returns if its a file...
+            return string;
+        } catch (IOException | InvalidPathException e) {
+            return u_err("makedirs:" + jString, e);
+        }
+
+        return string;
+    }
+
+    @Override
+    protected Varargs lib_fs_makedirsmany(Varargs args) {
+        LuaTable list = args.checktable(1);
+        //Directories that are known to exist, shared by all entries of this call.
+        Set<Path> known = new HashSet<>();
+
+        for (int i = 1, n = list.length(); i <= n; i++) {
+            String jString = list.get(i).checkjstring();
+            Path syspath = u_resolvePath(jString).toSystemPath();
+            if (syspath == null) {
+                Varargs res = super.lib_fs_makedirs(valueOf(jString));
+                if (res.isnil(1)) {
+                    return res;
                 }
+                continue;
+            }
+
+            try {
+                u_makedirs(syspath.toAbsolutePath(), known);
+            } catch (FileAlreadyExistsException e) {
+                //This even returns if its a file...
+            } catch (IOException | InvalidPathException e) {
+                return u_err("makedirs:" + jString, e);
+            }
+        }
+
+        return TRUE;
+    }
 
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    thePaths.add(file);
-                    return FileVisitResult.CONTINUE;
+    /**
+     * Creates the directory and all missing parents.
+     * The leaf is created first, parents are only looked at if that fails with ENOENT.
+     * Throws FileAlreadyExistsException if the leaf already exists.
+     * @param known directories that are known to exist, every directory that is created is added. may be null.
+     */
+    protected void u_makedirs(Path dir, Set<Path> known) throws IOException {
+        if (known != null && known.contains(dir)) {
+            throw new FileAlreadyExistsException(dir.toString());
+        }
+
+        Deque<Path> missing = new ArrayDeque<>();
+        Path current = dir;
+        while (known == null || !known.contains(current)) {
+            try {
+                Files.createDirectory(current);
+                if (known != null) {
+                    known.add(current);
+                }
+                break;
+            } catch (NoSuchFileException e) {
+                Path parent = current.getParent();
+                if (parent == null) {
+                    throw e;
                 }
 
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                    return FileVisitResult.CONTINUE;
+                missing.push(current);
+                current = parent;
+            } catch (FileAlreadyExistsException e) {
+                if (missing.isEmpty()) {
+                    throw e;
                 }
 
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    return FileVisitResult.CONTINUE;
+                //If this is a file the next mkdir fails with ENOTDIR.
+                break;
+            }
+        }
+
+        while (!missing.isEmpty()) {
+            current = missing.pop();
+            try {
+                Files.createDirectory(current);
+            } catch (FileAlreadyExistsException e) {
+                //Someone else was faster
+            }
+
+            if (known != null) {
+                known.add(current);
+            }
+        }
+    }
+
+    @Override
+    protected Varargs lib_fs_rename(Varargs args) {
+        String sourceString = args.checkjstring(1);
+        String targetString = args.checkjstring(2);
+
+        LuaPath srcFile = u_resolvePath(sourceString);
+        LuaPath targetFile = u_resolvePath(targetString);
+
+        Path sSource = srcFile.toSystemPath();
+        Path sTarget = targetFile.toSystemPath();
+        if (sSource == null || sTarget == null) {
+            return super.lib_fs_rename(args);
+        }
+
+        try {
+            if (Files.readAttributes(sSource, BasicFileAttributes.class).isDirectory()) {
+                //Yes this is how it fails
+                try {
+                    Files.deleteIfExists(sTarget);
+                    Files.createFile(sTarget);
+                } catch (IOException e) {
+                    //DC
                 }
-            });
-        } catch (IOException e) {
-            return u_err("unlockdirs:" + js +":(errno=5): I/O error");
+
+                return u_err("rename:" + targetString +":(errno=20): Not a directory");
+            }
+        } catch (IOException | InvalidPathException e) {
+            return u_err("rename:" + targetString, e);
+        }
+
+        try {
+            //ATOMIC_MOVE is a plain rename(2) without any checks
+            Files.move(sSource, sTarget, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            //Different file system, copy & delete it is.
+            try {
+                srcFile.moveFile(targetFile);
+            } catch (IOException exc) {
+                return u_err("rename:" + sourceString +":(errno=5): I/O error");
+            }
+        } catch (IOException | InvalidPathException e) {
+            return u_err("rename:" + sourceString, e);
         }
 
-        for (Path path : thePaths) {
-            String thePath = path.toAbsolutePath().toString();
+        return TRUE;
+    }
+
+    @Override
+    protected Varargs lib_fs_copy(Varargs args) {
+        String sourceString = args.checkjstring(1);
+        String targetString = args.checkjstring(2);
+
+        LuaPath srcFile = u_resolvePath(sourceString);
+        LuaPath targetFile = u_resolvePath(targetString);
 
+        Path sSource = srcFile.toSystemPath();
+        Path sTarget = targetFile.toSystemPath();
+        if (sSource == null || sTarget == null) {
+            return super.lib_fs_copy(args);
+        }
+
+        Stat stat;
+        try {
+            stat = nativeUtil.stat(sSource.toAbsolutePath().toString());
+        } catch (UnknownNativeErrorException | IOException | InvalidPathException e) {
+            return u_err("open:" + sourceString, e);
+        }
+
+        if ((stat.getMode() & S_IFMT) == S_IFDIR) {
+            //Yes this is how it fails
             try {
-                Stat stat = nativeUtil.stat(thePath);
-                nativeUtil.chmod(thePath, (int) (stat.getMode() | LinuxConst.S_IWUSR));
-            } catch (InvalidPathException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=36): File name too long");
-            } catch (PermissionDeniedException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=1): Operation not permitted");
-            } catch (FileSystemLoopException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=40): Too many symbolic links encountered");
-            } catch (AccessDeniedException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=13): Permission denied");
-            } catch (FileNotFoundException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=2): No such file or directory");
-            } catch (UnknownNativeErrorException e) {
-                return u_err("unlockdirs:"  + thePath, e.intCode(), nativeUtil.strerror_r(e.intCode()));
+                Files.deleteIfExists(sTarget);
+                Files.createFile(sTarget);
             } catch (IOException e) {
-                return u_err("unlockdirs:" + thePath +":(errno=5): I/O error");
+                //DC
+            }
+
+            return u_err("write:" + targetString +":(errno=14): Bad address");
+        }
+
+        //Fewer blocks allocated than the size needs means the file has holes.
+        boolean sparse = stat.getBlocks() * 512 < stat.getSize();
+
+        LPathCopier.Result result;
+        String stage = "open:" + sourceString;
+        try (FileChannel in = copier.openSource(sSource)) {
+            stage = "open:" + targetString;
+            try (FileChannel out = copier.openTarget(sTarget)) {
+                stage = "read:" + sourceString;
+                result = sparse ? copier.copySparse(in, out) : copier.copy(in, out);
+            }
+        } catch (IOException | InvalidPathException e) {
+            return u_err(stage, e);
+        }
+
+        return varargsOf(new LuaValue[] {TRUE, valueOf(result.strategy), valueOf(result.bytes), valueOf(result.skipped)});
+    }
+
+    @Override
+    protected Varargs lib_fs_unlockdirs(Varargs args) {
+        FastLuaString fs = u_concat_path(args);
+        String js = fs.toString();
+
+        LuaPath file = u_resolvePath(js);
+        if (!file.exists()) {
+            return u_err("unlockdirs:" + js +":(errno=2): No such file or directory");
+        }
+        if (!file.isDir()) {
+            return u_err("unlockdirs:" + js +":(errno=20): Not a directory");
+        }
+
+        Path syspath = file.toSystemPath();
+        if (syspath == null) {
+            return TRUE;
+        }
+
+        LPathUnlocker.Result result = unlocker.unlock(syspath, new LPathUnlocker.Chmod() {
+            @Override
+            public void addOwnerWrite(Path path) throws Exception {
+                String thePath = path.toAbsolutePath().toString();
+                Stat stat = nativeUtil.lstat(thePath);
+                nativeUtil.chmod(thePath, (int) (stat.getMode() | LinuxConst.S_IWUSR));
             }
+        });
+
+        if (result.getError() != null) {
+            return u_err("unlockdirs:" + result.getErrorPath().toAbsolutePath(), result.getError());
         }
 
         return TRUE;
@@ -376,5 +749,296 @@ public class LinuxLPathImpl extends JsePosixLPathImpl {
         return TRUE;
     }
 
+    @Override
+    protected Varargs lib_fs_dir(Varargs args) {
+        LuaString relative = args.narg() == 0 ? EMPTYSTRING : u_concat_path(args).checkstring(1);
+        Path sys = u_resolvePath(relative.checkjstring()).toSystemPath();
+        if (sys == null) {
+            return super.lib_fs_dir(args);
+        }
+
+        try {
+            if (!Files.readAttributes(sys, BasicFileAttributes.class).isDirectory()) {
+                return u_iterator(Collections.singleton(varargsOf(relative, valueOf("file"))).iterator());
+            }
+        } catch (IOException | InvalidPathException e) {
+            return u_err("dir:" + relative, e);
+        }
+
+        //All entries share the same prefix, only the name bytes differ.
+        int prefixLen = relative.m_length;
+        if (prefixLen > 0 && !u_isSeperator(relative.m_bytes[relative.m_offset + prefixLen - 1])) {
+            prefixLen++;
+        }
+
+        List<Varargs> result = new ArrayList<>();
+        try (LPathDirWalker.Dir dir = LPathDirWalker.Dir.open(sys)) {
+            for (Path name : dir) {
+                byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+                byte[] bytes = new byte[prefixLen + nameBytes.length];
+                System.arraycopy(relative.m_bytes, relative.m_offset, bytes, 0, relative.m_length);
+                if (prefixLen > relative.m_length) {
+                    bytes[relative.m_length] = separator;
+                }
+                System.arraycopy(nameBytes, 0, bytes, prefixLen, nameBytes.length);
+
+                boolean isDir;
+                try {
+                    //fstatat relative to the open directory
+                    isDir = dir.attributes(name, BasicFileAttributes.class, true).isDirectory();
+                } catch (IOException e) {
+                    isDir = false;
+                }
+
+                result.add(varargsOf(LuaString.valueUsing(bytes), isDir ? DIR : FILE));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return u_err("dir:" + relative + ":(errno=5): I/O error");
+        }
+
+        return u_iterator(result.iterator());
+    }
+
+    @Override
+    protected void u_scan(LuaPath root, int maxDepth, final ScanVisitor visitor) throws IOException {
+        Path sys = root.toSystemPath();
+        if (sys == null) {
+            super.u_scan(root, maxDepth, visitor);
+            return;
+        }
+
+        walker.walk(sys, maxDepth, true, new LPathDirWalker.Visitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path relative, BasicFileAttributes attrs) {
+                visitor.visit(relative.toString(), "in");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path relative, BasicFileAttributes attrs) {
+                visitor.visit(relative.toString(), attrs.isDirectory() ? "dir" : "file");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path relative) {
+                visitor.visit(relative.toString(), "out");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitDirectoryFailed(Path relative, IOException e) throws IOException {
+                //Not readable, visit it as empty
+                return postVisitDirectory(relative);
+            }
+        });
+    }
+
+    @Override
+    protected LPathDiskUsage.Stat u_duStat() {
+        return new LPathDiskUsage.Stat() {
+            @Override
+            public BasicFileAttributes stat(LPathDirWalker.Dir dir, Path name, boolean followLinks, LPathDiskUsage.Info info) throws Exception {
+                //The allocated blocks are only available natively, so this single stat also decides the type for the walk.
+                String path = (dir == null ? name : dir.getPath().resolve(name)).toAbsolutePath().toString();
+                Stat stat;
+                try {
+                    stat = followLinks ? nativeUtil.stat(path) : nativeUtil.lstat(path);
+                } catch (FileNotFoundException e) {
+                    throw new NoSuchFileException(path);
+                }
+
+                info.size = stat.getSize();
+                info.allocated = stat.getBlocks() * 512;
+                info.dev = stat.getDev();
+                info.ino = stat.getIno();
+                info.nlink = stat.getNlink();
+                return new NativeAttributes(stat);
+            }
+        };
+    }
+
+    /**
+     * The type, size and times of a native stat.
+     */
+    protected static class NativeAttributes implements BasicFileAttributes {
+        private final Stat stat;
+
+        protected NativeAttributes(Stat stat) {
+            this.stat = stat;
+        }
+
+        private int type() {
+            return (int) stat.getMode() & S_IFMT;
+        }
 
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.from(stat.getMtime(), TimeUnit.SECONDS);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.from(stat.getAtime(), TimeUnit.SECONDS);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return type() == S_IFREG;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return type() == S_IFDIR;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return type() == S_IFLNK;
+        }
+
+        @Override
+        public boolean isOther() {
+            return !isRegularFile() && !isDirectory() && !isSymbolicLink();
+        }
+
+        @Override
+        public long size() {
+            return stat.getSize();
+        }
+
+        @Override
+        public Object fileKey() {
+            return stat.getDev() + ":" + stat.getIno();
+        }
+    }
+
+    @Override
+    protected Boolean u_sameDevice(LuaPath a, LuaPath b) {
+        Path sa = a.toSystemPath();
+        Path sb = b.toSystemPath();
+        if (sa == null || sb == null) {
+            return null;
+        }
+
+        try {
+            return nativeUtil.stat(sa.toAbsolutePath().toString()).getDev() == nativeUtil.stat(sb.toAbsolutePath().toString()).getDev();
+        } catch (UnknownNativeErrorException | IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps the exceptions thrown by the native util to the same error messages lpath.c would return.
+     */
+    @Override
+    protected Varargs u_err(String func, Exception e) {
+        if (e instanceof UnknownNativeErrorException) {
+            int code = ((UnknownNativeErrorException) e).intCode();
+            return u_err(func, code, nativeUtil.strerror_r(code));
+        }
+
+        if (e instanceof NoSuchFileException) {
+            return u_err(func + ":(errno=2): No such file or directory");
+        }
+
+        if (e instanceof FileAlreadyExistsException) {
+            return u_err(func + ":(errno=17): File exists");
+        }
+
+        if (e instanceof DirectoryNotEmptyException) {
+            return u_err(func + ":(errno=39): Directory not empty");
+        }
+
+        if (e instanceof InvalidPathException) {
+            return u_err(func + ":(errno=36): File name too long");
+        }
+
+        if (e instanceof PermissionDeniedException) {
+            return u_err(func + ":(errno=1): Operation not permitted");
+        }
+
+        if (e instanceof FileSystemLoopException) {
+            return u_err(func + ":(errno=40): Too many symbolic links encountered");
+        }
+
+        if (e instanceof AccessDeniedException) {
+            return u_err(func + ":(errno=13): Permission denied");
+        }
+
+        if (e instanceof FileNotFoundException) {
+            return u_err(func + ":(errno=2): No such file or directory");
+        }
+
+        if (e instanceof NotDirectoryException) {
+            return u_err(func + ":(errno=20): Not a directory");
+        }
+
+        if (e instanceof NotLinkException || e instanceof LPathNestedTreeException) {
+            return u_err(func + ":(errno=22): Invalid argument");
+        }
+
+        if (e instanceof AtomicMoveNotSupportedException) {
+            return u_err(func + ":(errno=18): Invalid cross-device link");
+        }
+
+        if (e instanceof FileSystemException && ((FileSystemException) e).getFile() != null) {
+            String error = u_errorOfPath(((FileSystemException) e).getFile());
+            if (error != null) {
+                return u_err(func + error);
+            }
+        }
+
+        //NIO does not expose the errno of anything else.
+        return u_err(func + ":(errno=5): I/O error");
+    }
+
+    /**
+     * NIO reports ENOTDIR, ELOOP and EROFS as plain FileSystemException. Only called after the operation already failed,
+     * lstats the path and its parents until one exists and tells these apart from it. returns null if none of them apply.
+     */
+    protected String u_errorOfPath(String file) {
+        Path path;
+        try {
+            path = Paths.get(file);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+
+        for (Path current = path; current != null; current = current.getParent()) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(current, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                //Missing or a parent is not a directory, continue with the parent
+                continue;
+            }
+
+            try {
+                if (attrs.isSymbolicLink()) {
+                    attrs = Files.readAttributes(current, BasicFileAttributes.class);
+                }
+
+                if (current != path && !attrs.isDirectory()) {
+                    return ":(errno=20): Not a directory";
+                }
+
+                return Files.getFileStore(current).isReadOnly() ? ":(errno=30): Read-only file system" : null;
+            } catch (NoSuchFileException e) {
+                //Dangling link
+                return null;
+            } catch (FileSystemException e) {
+                return ":(errno=40): Too many symbolic links encountered";
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
 }
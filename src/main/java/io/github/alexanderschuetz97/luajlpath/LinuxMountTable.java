@@ -0,0 +1,230 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory snapshot of /proc/self/mountinfo.
+ * The mount points are stored in a trie keyed by path component so that ismount/mountof are simple lookups.
+ * The snapshot is rebuilt once it is older than the ttl.
+ */
+public class LinuxMountTable {
+
+    public static final Path MOUNTINFO = Paths.get("/proc/self/mountinfo");
+
+    private static final long DEFAULT_TTL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path source;
+    private final long ttl;
+
+    private volatile Node root;
+    private volatile long timestamp;
+
+    public LinuxMountTable() {
+        this(MOUNTINFO, DEFAULT_TTL);
+    }
+
+    public LinuxMountTable(Path source, long ttl) {
+        this.source = source;
+        this.ttl = ttl;
+    }
+
+    /**
+     * A single line of the mountinfo file.
+     */
+    public static class Mount {
+        public final String mountPoint;
+        public final String fsType;
+        public final String source;
+
+        public Mount(String mountPoint, String fsType, String source) {
+            this.mountPoint = mountPoint;
+            this.fsType = fsType;
+            this.source = source;
+        }
+    }
+
+    private static class Node {
+        private Map<String, Node> children;
+        private Mount mount;
+
+        private Node child(String name) {
+            return children == null ? null : children.get(name);
+        }
+
+        private Node getOrCreate(String name) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+
+            Node node = children.get(name);
+            if (node == null) {
+                node = new Node();
+                children.put(name, node);
+            }
+
+            return node;
+        }
+    }
+
+    /**
+     * returns true if the absolute normalized path is a mount point.
+     */
+    public boolean isMountPoint(Path absolute) throws IOException {
+        Node node = snapshot();
+        for (Path component : absolute) {
+            node = node.child(component.toString());
+            if (node == null) {
+                return false;
+            }
+        }
+
+        return node.mount != null;
+    }
+
+    /**
+     * returns the mount that contains the absolute normalized path or null if there is none.
+     */
+    public Mount mountOf(Path absolute) throws IOException {
+        Node node = snapshot();
+        Mount result = node.mount;
+        for (Path component : absolute) {
+            node = node.child(component.toString());
+            if (node == null) {
+                break;
+            }
+
+            if (node.mount != null) {
+                result = node.mount;
+            }
+        }
+
+        return result;
+    }
+
+    private Node snapshot() throws IOException {
+        Node current = root;
+        if (current != null && System.nanoTime() - timestamp < ttl) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = root;
+            if (current != null && System.nanoTime() - timestamp < ttl) {
+                return current;
+            }
+
+            try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                current = parse(reader);
+            }
+
+            root = current;
+            timestamp = System.nanoTime();
+            return current;
+        }
+    }
+
+    private static Node parse(Reader input) throws IOException {
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        Node result = new Node();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Mount mount = parseLine(line);
+            if (mount == null) {
+                continue;
+            }
+
+            Node node = result;
+            for (Path component : Paths.get(mount.mountPoint)) {
+                node = node.getOrCreate(component.toString());
+            }
+
+            //Later lines are mounted on top of earlier ones so they win.
+            node.mount = mount;
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses "36 35 98:0 /mnt1 /mnt2 rw,noatime master:1 - ext3 /dev/root rw,errors=continue"
+     * returns null if the line is malformed.
+     */
+    static Mount parseLine(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length < 7) {
+            return null;
+        }
+
+        //optional fields are terminated by a single "-"
+        int sep = 6;
+        while (sep < fields.length && !"-".equals(fields[sep])) {
+            sep++;
+        }
+
+        if (sep + 2 >= fields.length) {
+            return null;
+        }
+
+        String mountPoint = unescape(fields[4]);
+        if (!mountPoint.startsWith("/")) {
+            return null;
+        }
+
+        return new Mount(mountPoint, unescape(fields[sep + 1]), unescape(fields[sep + 2]));
+    }
+
+    /**
+     * The kernel escapes space, tab, newline and backslash as \ooo.
+     */
+    static String unescape(String field) {
+        if (field.indexOf('\\') == -1) {
+            return field;
+        }
+
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length() && isOctal(field.charAt(i+1)) && isOctal(field.charAt(i+2)) && isOctal(field.charAt(i+3))) {
+                sb.append((char) Integer.parseInt(field.substring(i+1, i+4), 8));
+                i+=3;
+                continue;
+            }
+
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean isOctal(char c) {
+        return c >= '0' && c <= '7';
+    }
+}
@@ -464,6 +464,132 @@ public class LuajLPathLib extends TwoArgFunction {
             }
         });
 
+        fs.set("mountof", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_mountof(args);
+            }
+        });
+
+        fs.set("makedirsmany", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_makedirsmany(args);
+            }
+        });
+
+        fs.set("copytree", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_copytree(args);
+            }
+        });
+
+        fs.set("linktree", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_linktree(args);
+            }
+        });
+
+        fs.set("mmap", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_mmap(args);
+            }
+        });
+
+        fs.set("hash", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_hash(args);
+            }
+        });
+
+        fs.set("hashmany", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_hashmany(args);
+            }
+        });
+
+        fs.set("treehash", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_treehash(args);
+            }
+        });
+
+        fs.set("diff", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_diff(args);
+            }
+        });
+
+        fs.set("sync", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_sync(args);
+            }
+        });
+
+        fs.set("duplicates", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_duplicates(args);
+            }
+        });
+
+        fs.set("du", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_du(args);
+            }
+        });
+
+        fs.set("top", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_top(args);
+            }
+        });
+
+        fs.set("groupby", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_groupby(args);
+            }
+        });
+
+        fs.set("walk", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_walk(args);
+            }
+        });
+
+        fs.set("scanpage", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_scanpage(args);
+            }
+        });
+
+        fs.set("opendir", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_opendir(args);
+            }
+        });
+
+        fs.set("watch", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return impl.lib_fs_watch(args);
+            }
+        });
+
 
         return fs;
 
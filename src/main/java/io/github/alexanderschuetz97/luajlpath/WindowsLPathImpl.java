@@ -319,13 +319,14 @@ public class WindowsLPathImpl extends JseWindowsLPathImpl {
 
 
 
+        LPathCopier.Result result;
         try {
-            srcFile.copyFile(targetFile);
+            result = u_copyFile(srcFile, targetFile);
         } catch (IOException e) {
             return u_err("read:" + sourceString +":(errno=5): I/O error");
         }
 
-        return TRUE;
+        return varargsOf(new LuaValue[] {TRUE, valueOf(result.strategy), valueOf(result.bytes), valueOf(result.skipped)});
     }
 
     @Override
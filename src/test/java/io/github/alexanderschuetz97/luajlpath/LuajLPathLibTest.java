@@ -19,7 +19,9 @@
 //
 package io.github.alexanderschuetz97.luajlpath;
 
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaFunction;
@@ -29,6 +31,24 @@ import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.LuaC;
 import org.luaj.vm2.lib.jse.JsePlatform;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 public class LuajLPathLibTest {
 
 
@@ -50,6 +70,22 @@ public class LuajLPathLibTest {
 
 
 
+    private Path tmp;
+    private String base;
+    private LuaValue fs;
+
+    @Before
+    public void createTmp() throws IOException {
+        tmp = Files.createTempDirectory("lpath");
+        base = tmp.toString();
+        fs = globals().get("require").call("path.fs");
+    }
+
+    @After
+    public void removeTmp() {
+        fs.get("removedirs").call(v(base));
+    }
+
     private static Globals globals() {
         Globals gl = JsePlatform.standardGlobals();
         LuaC.install(gl);
@@ -281,6 +317,675 @@ public class LuajLPathLibTest {
 
     }
 
+    @Test
+    public void testMountInfoLine() {
+        LinuxMountTable.Mount mount = LinuxMountTable.parseLine("36 35 98:0 /mnt1 /mnt\\0402 rw,noatime master:1 shared:2 - ext3 /dev/root rw,errors=continue");
+        Assert.assertNotNull(mount);
+        Assert.assertEquals("/mnt 2", mount.mountPoint);
+        Assert.assertEquals("ext3", mount.fsType);
+        Assert.assertEquals("/dev/root", mount.source);
+        Assert.assertNull(LinuxMountTable.parseLine("36 35 98:0 /mnt1 /mnt2 rw,noatime"));
+    }
+
+    @Test
+    public void testIsMountThroughLink() throws Exception {
+        if (!Files.isDirectory(Paths.get("/proc/self"))) {
+            return;
+        }
+
+        Path link = Files.createSymbolicLink(tmp.resolve("link"), Paths.get("/proc"));
+        Files.createDirectory(tmp.resolve("sub"));
+        Path nested = Files.createSymbolicLink(tmp.resolve("sub/nested"), Paths.get("/proc/self"));
+
+        Assert.assertTrue(fs.get("ismount").call(v(link.toString())).toboolean());
+        Assert.assertEquals("/proc", fs.get("mountof").call(v(link.toString())).tojstring());
+        //nested/.. is /proc once the link is resolved, lexically it would be tmp/sub
+        Assert.assertTrue(fs.get("ismount").call(v(nested.toString() + "/..")).toboolean());
+        Assert.assertFalse(fs.get("ismount").call(v(tmp.resolve("sub").toString())).toboolean());
+    }
+
+    @Test
+    public void testMakedirsMany() throws Exception {
+        LuaTable list = new LuaTable();
+        list.set(1, v(base + "/a/b/c"));
+        list.set(2, v(base + "/a/b/d"));
+        list.set(3, v(base + "/a/e"));
+        Assert.assertTrue(fs.get("makedirsmany").call(list).toboolean());
+        Assert.assertTrue(Files.isDirectory(tmp.resolve("a/b/c")));
+        Assert.assertTrue(Files.isDirectory(tmp.resolve("a/b/d")));
+        Assert.assertTrue(Files.isDirectory(tmp.resolve("a/e")));
+
+        Files.createFile(tmp.resolve("f"));
+        Varargs res = fs.get("makedirs").invoke(v(base + "/f/x/y"));
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertEquals("makedirs:" + base + "/f/x/y:(errno=20): Not a directory", res.checkjstring(2));
+    }
+
+    @Test
+    public void testCopyTree() throws Exception {
+        Files.createDirectories(tmp.resolve("src/a/b"));
+        Files.createDirectories(tmp.resolve("src/empty"));
+        Files.write(tmp.resolve("src/x"), new byte[] {1, 2, 3});
+        Files.write(tmp.resolve("src/a/b/y"), new byte[100000]);
+
+        Varargs res = fs.get("copytree").invoke(v(base + "/src"), v(base + "/dst"));
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertEquals(2, res.arg(2).toint());
+        Assert.assertEquals(4, res.arg(3).toint());
+        Assert.assertEquals(100003, res.arg(4).tolong());
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(tmp.resolve("dst/x")));
+        Assert.assertEquals(100000, Files.size(tmp.resolve("dst/a/b/y")));
+        Assert.assertTrue(Files.isDirectory(tmp.resolve("dst/empty")));
+
+        LuaTable pair = new LuaTable();
+        pair.set(1, v(base + "/src/x"));
+        pair.set(2, v(base + "/z"));
+        LuaTable list = new LuaTable();
+        list.set(1, pair);
+        res = fs.get("copytree").invoke(list);
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(tmp.resolve("z")));
+
+        res = fs.get("copytree").invoke(v(base + "/nope"), v(base + "/dst"));
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertEquals("copytree:" + base + "/nope:(errno=2): No such file or directory", res.checkjstring(2));
+
+        res = fs.get("copytree").invoke(v(base + "/src"), v(base + "/src/a/inner"));
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertEquals("copytree:" + base + "/src:(errno=22): Invalid argument", res.checkjstring(2));
+        Assert.assertFalse(Files.exists(tmp.resolve("src/a/inner")));
+
+        Files.createSymbolicLink(tmp.resolve("link"), tmp.resolve("src/a"));
+        res = fs.get("copytree").invoke(v(base + "/src"), v(base + "/link/inner"));
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertFalse(Files.exists(tmp.resolve("src/a/inner")));
+    }
+
+    @Test
+    public void testLinkTree() throws Exception {
+        Files.createDirectories(tmp.resolve("src/a"));
+        Files.write(tmp.resolve("src/x"), new byte[] {1, 2, 3});
+        Files.write(tmp.resolve("src/a/y"), new byte[] {4});
+
+        Varargs res = fs.get("linktree").invoke(v(base + "/src"), v(base + "/dst"));
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertEquals(2, res.arg(2).toint());
+        Assert.assertEquals(2, res.arg(3).toint());
+        Assert.assertEquals(0, res.arg(4).toint());
+        Assert.assertTrue(Files.isSameFile(tmp.resolve("src/x"), tmp.resolve("dst/x")));
+        Assert.assertTrue(Files.isSameFile(tmp.resolve("src/a/y"), tmp.resolve("dst/a/y")));
+
+        //Hard links cannot cross devices, without fallback that is EXDEV
+        Path shm = Paths.get("/dev/shm");
+        if (Files.isDirectory(shm) && !Files.getFileStore(shm).equals(Files.getFileStore(tmp))) {
+            Path other = Files.createTempDirectory(shm, "lpath");
+            try {
+                res = fs.get("linktree").invoke(v(base + "/src"), v(other + "/dst"));
+                Assert.assertTrue(res.isnil(1));
+                Assert.assertTrue(res.checkjstring(2), res.checkjstring(2).endsWith(":(errno=18): Invalid cross-device link"));
+            } finally {
+                fs.get("removedirs").call(v(other.toString()));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveDirs() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Path dir = Files.createDirectories(tmp.resolve("d" + i + "/x"));
+            Files.createFile(dir.resolve("f"));
+            Files.createFile(dir.getParent().resolve("g"));
+        }
+
+        Varargs res = fs.get("removedirs").invoke(v(base));
+        Assert.assertEquals(base, res.checkjstring(1));
+        Assert.assertEquals(20, res.arg(2).toint());
+        Assert.assertEquals(21, res.arg(3).toint());
+        Assert.assertFalse(Files.exists(tmp));
+
+        res = fs.get("removedirs").invoke(v(base));
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertEquals("removedirs:" + base + ":(errno=2): No such file or directory", res.checkjstring(2));
+
+        Files.createDirectories(tmp.resolve("a/b"));
+        Files.createFile(tmp.resolve("a/b/c"));
+        res = fs.get("removedirs").invoke(v(base + "/a"), LuaValue.TRUE);
+        Assert.assertEquals(base + "/a", res.checkjstring(1));
+        Assert.assertFalse(Files.exists(tmp.resolve("a")));
+
+        //Nothing is left next to the removed path, the trash directory is private to the user.
+        Assert.assertEquals(0, tmp.toFile().list().length);
+        Path handlerTmp = Paths.get(fs.get("tmpdir").call().checkjstring());
+        Files.delete(handlerTmp);
+        Path trashDir = handlerTmp.resolveSibling(LPathTrash.TRASH_PREFIX + System.getProperty("user.name"));
+        Assert.assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(trashDir, LinkOption.NOFOLLOW_LINKS));
+        for (int i = 0; i < 100 && trashDir.toFile().list().length > 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, trashDir.toFile().list().length);
+
+        res = fs.get("removedirs").invoke(v(base + "/missing"), LuaValue.TRUE);
+        Assert.assertTrue(res.isnil(1));
+        Assert.assertEquals(0, tmp.toFile().list().length);
+
+        //Leftovers of a jvm that exited early are deleted when the library is loaded.
+        Files.createDirectories(trashDir.resolve("leftover/x"));
+        globals();
+        for (int i = 0; i < 100 && Files.exists(trashDir.resolve("leftover")); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertFalse(Files.exists(trashDir.resolve("leftover")));
+    }
+
+    @Test
+    public void testUnlockDirs() throws Exception {
+        Path dir = Files.createDirectories(tmp.resolve("a/b"));
+        Files.createFile(dir.resolve("f"));
+        Files.setPosixFilePermissions(dir.resolve("f"), PosixFilePermissions.fromString("r--r--r--"));
+        Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("r-xr-xr-x"));
+
+        Assert.assertTrue(fs.get("unlockdirs").call(v(base)).toboolean());
+        Assert.assertTrue(Files.getPosixFilePermissions(dir).contains(PosixFilePermission.OWNER_WRITE));
+        Assert.assertTrue(Files.getPosixFilePermissions(dir.resolve("f")).contains(PosixFilePermission.OWNER_WRITE));
+
+        //A directory that cannot be read is skipped, the rest of the tree is still unlocked.
+        Path locked = Files.createDirectories(tmp.resolve("a/locked"));
+        Files.setPosixFilePermissions(dir.resolve("f"), PosixFilePermissions.fromString("r--r--r--"));
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        Assert.assertTrue(fs.get("unlockdirs").call(v(base)).toboolean());
+        Assert.assertTrue(Files.getPosixFilePermissions(dir.resolve("f")).contains(PosixFilePermission.OWNER_WRITE));
+        Assert.assertTrue(Files.getPosixFilePermissions(locked).contains(PosixFilePermission.OWNER_WRITE));
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+    }
+
+    @Test
+    public void testMmap() throws Exception {
+        Path tmp = Files.createTempFile("lpath", ".txt");
+        Files.write(tmp, "hello\nworld\n\nend".getBytes(StandardCharsets.UTF_8));
+
+        Globals gl = globals();
+        gl.set("file", v(tmp.toString()));
+        LuaTable lt = gl.load("local fs = require('path.fs')" +
+                "\nlocal m = fs.mmap(file)" +
+                "\nlocal t = {len = #m, sub = m:sub(7, 11), tail = m:sub(-3), byte = m:byte(1), find = m:find('world'), lines = {}}" +
+                "\nfor l in m:lines() do t.lines[#t.lines+1] = l end" +
+                "\nlocal part = fs.mmap(file, 6, 5)" +
+                "\nt.part = part:sub(1)" +
+                "\nm:close()" +
+                "\npart:close()" +
+                "\nt.closed = pcall(m.len, m)" +
+                "\nreturn t", "test.lua").call().checktable();
+
+        Assert.assertEquals(16, lt.get("len").toint());
+        Assert.assertEquals("world", lt.get("sub").checkjstring());
+        Assert.assertEquals("end", lt.get("tail").checkjstring());
+        Assert.assertEquals('h', lt.get("byte").toint());
+        Assert.assertEquals(7, lt.get("find").toint());
+        Assert.assertEquals(4, lt.get("lines").length());
+        Assert.assertEquals("world", lt.get("lines").get(2).checkjstring());
+        Assert.assertEquals("", lt.get("lines").get(3).checkjstring());
+        Assert.assertEquals("world", lt.get("part").checkjstring());
+        Assert.assertFalse(lt.get("closed").toboolean());
+
+        Files.delete(tmp);
+    }
+
+    @Test
+    public void testHash() throws Exception {
+        Files.write(tmp.resolve("digits"), "123456789".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("abc"), "abc".getBytes(StandardCharsets.UTF_8));
+        Files.createFile(tmp.resolve("empty"));
+
+        Assert.assertEquals("e3069283", fs.get("hash").call(v(base + "/digits"), v("crc32c")).checkjstring());
+        Assert.assertEquals("ef46db3751d8e999", fs.get("hash").call(v(base + "/empty"), v("xxh64")).checkjstring());
+        Assert.assertEquals("44bc2cf5ad770999", fs.get("hash").call(v(base + "/abc"), v("xxh64")).checkjstring());
+        Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", fs.get("hash").call(v(base + "/abc")).checkjstring());
+
+        LuaTable list = new LuaTable();
+        list.set(1, v(base + "/digits"));
+        list.set(2, v(base + "/empty"));
+        LuaTable res = fs.get("hashmany").call(list, v("crc32c")).checktable();
+        Assert.assertEquals("e3069283", res.get(base + "/digits").checkjstring());
+        Assert.assertEquals("00000000", res.get(base + "/empty").checkjstring());
+
+        list.set(3, v(base + "/nope"));
+        Varargs err = fs.get("hashmany").invoke(list);
+        Assert.assertTrue(err.isnil(1));
+        Assert.assertEquals("hash:" + base + "/nope:(errno=2): No such file or directory", err.checkjstring(2));
+    }
+
+    @Test
+    public void testTreeHash() throws Exception {
+        Files.createDirectories(tmp.resolve("tree/a/b"));
+        Files.write(tmp.resolve("tree/a/x"), "x".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("tree/a/b/y"), "y".getBytes(StandardCharsets.UTF_8));
+
+        LuaTable opts = new LuaTable();
+        opts.set("cache", v(base + "/cache"));
+        Varargs first = fs.get("treehash").invoke(v(base + "/tree"), opts);
+        Assert.assertEquals(2, first.checkint(3));
+        Assert.assertEquals(0, first.checkint(4));
+        Assert.assertEquals(first.checkjstring(1), first.checktable(2).get(".").checkjstring());
+
+        Varargs second = fs.get("treehash").invoke(v(base + "/tree"), opts);
+        Assert.assertEquals(first.checkjstring(1), second.checkjstring(1));
+        Assert.assertEquals(0, second.checkint(3));
+        Assert.assertEquals(2, second.checkint(4));
+
+        Files.write(tmp.resolve("tree/a/b/y"), "changed".getBytes(StandardCharsets.UTF_8));
+        Varargs third = fs.get("treehash").invoke(v(base + "/tree"), opts);
+        Assert.assertNotEquals(first.checkjstring(1), third.checkjstring(1));
+        Assert.assertNotEquals(first.checktable(2).get("a/b").checkjstring(), third.checktable(2).get("a/b").checkjstring());
+        Assert.assertEquals(1, third.checkint(3));
+
+        Varargs err = fs.get("treehash").invoke(v(base + "/nope"), opts);
+        Assert.assertTrue(err.isnil(1));
+
+        //A cache that is a symlink is neither read nor written through.
+        Files.write(tmp.resolve("victim"), "victim".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(tmp.resolve("linkcache"), tmp.resolve("victim"));
+        opts.set("cache", v(base + "/linkcache"));
+        Varargs linked = fs.get("treehash").invoke(v(base + "/tree"), opts);
+        Assert.assertEquals(third.checkjstring(1), linked.checkjstring(1));
+        Assert.assertEquals(2, linked.checkint(3));
+        Assert.assertEquals("victim", new String(Files.readAllBytes(tmp.resolve("victim")), StandardCharsets.UTF_8));
+
+        //A directory that cannot be listed is an error, not an empty directory
+        Path locked = Files.createDirectories(tmp.resolve("tree/locked"));
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            if (!Files.isReadable(locked)) {
+                //root can still read it
+                Assert.assertTrue(fs.get("treehash").invoke(v(base + "/tree"), opts).isnil(1));
+            }
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        Files.createDirectories(tmp.resolve("a/sub"));
+        Files.createDirectories(tmp.resolve("b/sub"));
+        Files.createDirectories(tmp.resolve("a/gone"));
+        Files.write(tmp.resolve("a/sub/same"), "same".getBytes(StandardCharsets.UTF_8));
+        Files.copy(tmp.resolve("a/sub/same"), tmp.resolve("b/sub/same"), StandardCopyOption.COPY_ATTRIBUTES);
+        Files.write(tmp.resolve("a/sub/changed"), "aaaa".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("b/sub/changed"), "bbbb".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("b/new"), "new".getBytes(StandardCharsets.UTF_8));
+
+        LuaValue iter = fs.get("diff").call(v(base + "/a"), v(base + "/b"), v("content"));
+        List<String> events = new ArrayList<>();
+        Varargs ev;
+        while (!(ev = iter.invoke()).isnil(1)) {
+            events.add(ev.checkjstring(1) + " " + ev.checkjstring(2) + " " + ev.checkjstring(3));
+        }
+
+        Assert.assertEquals(Arrays.asList("removed gone dir", "added new file", "changed sub/changed file"), events);
+        Assert.assertTrue(iter.invoke().isnil(1));
+
+        //Breaking out of the loop leaves the directories of the current path open until :close()
+        Globals gl = globals();
+        gl.set("a", v(base + "/a"));
+        gl.set("b", v(base + "/b"));
+        LuaTable lt = gl.load("local fs = require('path.fs')" +
+                "\nlocal d = fs.diff(a, b, 'content')" +
+                "\nlocal t = {}" +
+                "\nfor ev, p in d do t[#t+1] = p break end" +
+                "\nt.open = tostring(d)" +
+                "\nd:close()" +
+                "\nt.closed = tostring(d)" +
+                "\nt.after = d() == nil" +
+                "\nreturn t", "diff.lua").call().checktable();
+        Assert.assertEquals(1, lt.length());
+        Assert.assertEquals("gone", lt.get(1).checkjstring());
+        Assert.assertEquals("diff (" + base + "/a)", lt.get("open").checkjstring());
+        Assert.assertEquals("diff (closed)", lt.get("closed").checkjstring());
+        Assert.assertTrue(lt.get("after").toboolean());
+
+        Varargs err = fs.get("diff").invoke(v(base + "/nope"), v(base + "/b"));
+        Assert.assertTrue(err.isnil(1));
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        Files.createDirectories(tmp.resolve("src/sub"));
+        Files.createDirectories(tmp.resolve("dst/extra"));
+        Files.write(tmp.resolve("src/a"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("src/sub/b"), "bb".getBytes(StandardCharsets.UTF_8));
+        Files.write(tmp.resolve("dst/stale"), "stale".getBytes(StandardCharsets.UTF_8));
+
+        LuaTable opts = new LuaTable();
+        opts.set("delete", LuaValue.TRUE);
+        Varargs res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertEquals(2, res.checkint(2));
+        Assert.assertEquals(0, res.checkint(3));
+        Assert.assertEquals(2, res.checkint(4));
+        Assert.assertEquals(3, res.checkint(5));
+        Assert.assertEquals("bb", new String(Files.readAllBytes(tmp.resolve("dst/sub/b")), StandardCharsets.UTF_8));
+        Assert.assertFalse(Files.exists(tmp.resolve("dst/stale")));
+        Assert.assertFalse(Files.exists(tmp.resolve("dst/extra")));
+
+        res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+        Assert.assertEquals(0, res.checkint(2));
+        Assert.assertEquals(2, res.checkint(3));
+
+        Files.write(tmp.resolve("src/sub/b"), "cc".getBytes(StandardCharsets.UTF_8));
+        opts.set("checksum", LuaValue.TRUE);
+        res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+        Assert.assertEquals(1, res.checkint(2));
+        Assert.assertEquals("cc", new String(Files.readAllBytes(tmp.resolve("dst/sub/b")), StandardCharsets.UTF_8));
+
+        //Equal content with a different mtime is skipped but gets the mtime of the source
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(tmp.resolve("dst/a"), old);
+        res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+        Assert.assertEquals(0, res.checkint(2));
+        Assert.assertEquals(Files.getLastModifiedTime(tmp.resolve("src/a")), Files.getLastModifiedTime(tmp.resolve("dst/a")));
+
+        Varargs err = fs.get("sync").invoke(v(base + "/nope"), v(base + "/dst"));
+        Assert.assertTrue(err.isnil(1));
+
+        err = fs.get("sync").invoke(v(base + "/src"), v(base + "/src/sub/inner"));
+        Assert.assertTrue(err.isnil(1));
+        Assert.assertEquals("sync:" + base + "/src:(errno=22): Invalid argument", err.checkjstring(2));
+        Assert.assertFalse(Files.exists(tmp.resolve("src/sub/inner")));
+
+        //2 MiB at 2 MiB/s, the second chunk has to wait for the first
+        Files.write(tmp.resolve("src/big"), new byte[(2 << 20) + 1]);
+        opts.set("rate", LuaValue.valueOf(2 << 20));
+        long start = System.nanoTime();
+        res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+        Assert.assertEquals((2 << 20) + 1, Files.size(tmp.resolve("dst/big")));
+    }
+
+    @Test
+    public void testSyncUnreadableSource() throws Exception {
+        Files.createDirectories(tmp.resolve("src/locked"));
+        Files.write(tmp.resolve("src/locked/a"), new byte[1]);
+        LuaTable opts = new LuaTable();
+        opts.set("delete", LuaValue.TRUE);
+        Assert.assertTrue(fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts}).arg1().toboolean());
+
+        //A source directory that cannot be listed must not delete its mirror
+        Path locked = tmp.resolve("src/locked");
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            Varargs res = fs.get("sync").invoke(new LuaValue[] {v(base + "/src"), v(base + "/dst"), opts});
+            if (!Files.isReadable(locked)) {
+                //root can still read it
+                Assert.assertTrue(res.isnil(1));
+            }
+            Assert.assertTrue(Files.exists(tmp.resolve("dst/locked/a")));
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    @Test
+    public void testSymlinkedRoots() throws Exception {
+        Files.createDirectories(tmp.resolve("real/sub"));
+        Files.write(tmp.resolve("real/sub/f"), "f".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(tmp.resolve("link"), tmp.resolve("real"));
+
+        LuaTable du = fs.get("du").call(v(base + "/link")).checktable();
+        Assert.assertEquals(1, du.get(".").get("files").checkint());
+
+        LuaTable noCache = new LuaTable();
+        noCache.set("cache", LuaValue.FALSE);
+        Assert.assertEquals(fs.get("treehash").invoke(v(base + "/real"), noCache).checkjstring(1),
+                fs.get("treehash").invoke(v(base + "/link"), noCache).checkjstring(1));
+
+        LuaValue diff = fs.get("diff").call(v(base + "/link"), v(base + "/real"));
+        Assert.assertTrue(diff.invoke().isnil(1));
+
+        Varargs res = fs.get("sync").invoke(v(base + "/link"), v(base + "/dst"));
+        Assert.assertTrue(res.arg1().toboolean());
+        Assert.assertEquals(1, res.checkint(2));
+        Assert.assertEquals("f", new String(Files.readAllBytes(tmp.resolve("dst/sub/f")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        Files.createDirectories(tmp.resolve("a"));
+        Files.createDirectories(tmp.resolve("b"));
+        byte[] data = new byte[200000];
+        new Random(1).nextBytes(data);
+        Files.write(tmp.resolve("a/one"), data);
+        Files.write(tmp.resolve("b/two"), data);
+        Files.createLink(tmp.resolve("a/link"), tmp.resolve("a/one"));
+        data[100000]++;
+        Files.write(tmp.resolve("b/middle"), data);
+        Files.write(tmp.resolve("b/small"), "small".getBytes(StandardCharsets.UTF_8));
+
+        LuaTable roots = new LuaTable();
+        roots.set(1, v(base + "/a"));
+        roots.set(2, v(base + "/b"));
+        Varargs res = fs.get("duplicates").invoke(roots);
+        LuaTable groups = res.checktable(1);
+        Assert.assertEquals(4, res.checkint(2));
+        Assert.assertEquals(1, groups.length());
+        LuaTable group = groups.get(1).checktable();
+        Assert.assertEquals(200000, group.get("size").checkint());
+        Assert.assertEquals(2, group.length());
+        Assert.assertEquals(base + "/b/two", group.get(2).checkjstring());
+    }
+
+    @Test
+    public void testDu() throws Exception {
+        Files.createDirectories(tmp.resolve("a/b"));
+        Files.createDirectories(tmp.resolve("c"));
+        Files.write(tmp.resolve("a/f"), new byte[10000]);
+        Files.write(tmp.resolve("a/b/g"), new byte[100]);
+        Files.createLink(tmp.resolve("c/h"), tmp.resolve("a/f"));
+
+        LuaTable res = fs.get("du").call(v(base), LuaValue.valueOf(1)).checktable();
+        LuaTable total = res.get(".").checktable();
+        Assert.assertEquals(2, total.get("files").checkint());
+        Assert.assertEquals(3, total.get("dirs").checkint());
+        Assert.assertTrue(total.get("size").checklong() >= 10100);
+        Assert.assertTrue(res.get("a").istable());
+        Assert.assertTrue(res.get("c").istable());
+        Assert.assertTrue(res.get("a/b").isnil());
+        Assert.assertEquals(2, res.get("a").get("files").checkint() + res.get("c").get("files").checkint());
+
+        Assert.assertTrue(fs.get("du").invoke(v(base + "/nope")).isnil(1));
+    }
+
+    @Test
+    public void testTopAndGroupBy() throws Exception {
+        Files.createDirectories(tmp.resolve("x/y"));
+        Files.write(tmp.resolve("a.log"), new byte[500]);
+        Files.write(tmp.resolve("x/b.log"), new byte[100]);
+        Files.write(tmp.resolve("x/y/c.txt"), new byte[900]);
+        Files.write(tmp.resolve(".hidden"), new byte[1]);
+
+        LuaTable top = fs.get("top").call(v(base), LuaValue.valueOf(2)).checktable();
+        Assert.assertEquals(2, top.length());
+        Assert.assertEquals(base + "/x/y/c.txt", top.get(1).get("path").checkjstring());
+        Assert.assertEquals(900, top.get(1).get("value").checkint());
+        Assert.assertEquals(base + "/a.log", top.get(2).get("path").checkjstring());
+
+        top = fs.get("top").call(v(base), LuaValue.valueOf(1), v("-size")).checktable();
+        Assert.assertEquals(base + "/.hidden", top.get(1).get("path").checkjstring());
+
+        LuaTable groups = fs.get("groupby").call(v(base), v("suffix"), v("size")).checktable();
+        Assert.assertEquals(600, groups.get(".log").checkint());
+        Assert.assertEquals(900, groups.get(".txt").checkint());
+        Assert.assertEquals(1, groups.get("").checkint());
+
+        groups = fs.get("groupby").call(v(base), v("depth")).checktable();
+        Assert.assertEquals(2, groups.get(0).checkint());
+        Assert.assertEquals(1, groups.get(1).checkint());
+        Assert.assertEquals(1, groups.get(2).checkint());
+
+        groups = fs.get("groupby").call(v(base), v("owner")).checktable();
+        Assert.assertEquals(4, groups.get(Files.getOwner(tmp).getName()).checkint());
+
+        //ctime is the inode change time, it moves when the file is touched even if mtime is set back
+        Files.setLastModifiedTime(tmp.resolve("a.log"), FileTime.fromMillis(0));
+        top = fs.get("top").call(v(base), LuaValue.valueOf(4), v("ctime")).checktable();
+        Assert.assertEquals(4, top.length());
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertTrue(Math.abs(top.get(i).get("value").checklong() - System.currentTimeMillis() / 1000) < 60);
+        }
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        Files.createDirectories(tmp.resolve("keep/sub"));
+        Files.createDirectories(tmp.resolve("skip/sub"));
+        Files.write(tmp.resolve("keep/sub/a"), new byte[3]);
+        Files.write(tmp.resolve("skip/sub/b"), new byte[3]);
+
+        Globals gl = globals();
+        gl.set("base", base);
+        LuaTable lt = gl.load("\nlocal fs = require('path.fs')" +
+                "\nlocal t = {}" +
+                "\nlocal ok, n = fs.walk(base, function(p, type, stat)" +
+                "\n  t[#t+1] = p" +
+                "\n  if p == base .. '/skip' then return 'prune' end" +
+                "\n  if type == 'file' then t.size = stat.size end" +
+                "\nend)" +
+                "\nt.n = n" +
+                "\nreturn t", "test.lua").call().checktable();
+
+        Assert.assertEquals(5, lt.length());
+        Assert.assertEquals(5, lt.get("n").checkint());
+        Assert.assertEquals(3, lt.get("size").checkint());
+        for (int i = 1; i <= lt.length(); i++) {
+            Assert.assertFalse(lt.get(i).checkjstring().startsWith(base + "/skip/"));
+        }
+
+        lt = gl.load("\nlocal fs = require('path.fs')" +
+                "\nlocal t = {}" +
+                "\nfs.walk(base, function(p) t[#t+1] = p return 'stop' end)" +
+                "\nreturn t", "test.lua").call().checktable();
+        Assert.assertEquals(1, lt.length());
+        Assert.assertEquals(base, lt.get(1).checkjstring());
+    }
+
+    @Test
+    public void testScanPage() throws Exception {
+        Files.createDirectories(tmp.resolve("a/b"));
+        Files.createDirectories(tmp.resolve("c"));
+        Files.write(tmp.resolve("a/1"), new byte[0]);
+        Files.write(tmp.resolve("a/b/2"), new byte[0]);
+        Files.write(tmp.resolve("c/3"), new byte[0]);
+        Files.write(tmp.resolve("d"), new byte[0]);
+        Files.createSymbolicLink(tmp.resolve("e"), Paths.get("a"));
+
+        List<String> seen = new ArrayList<>();
+        LuaValue token = LuaValue.NIL;
+        int pages = 0;
+        do {
+            Varargs page = fs.get("scanpage").invoke(new LuaValue[] {v(base), LuaValue.valueOf(2), token});
+            LuaTable entries = page.checktable(1);
+            Assert.assertTrue(entries.length() <= 2);
+            for (int i = 1; i <= entries.length(); i++) {
+                seen.add(entries.get(i).get("path").checkjstring().substring(base.length() + 1) + ":" + entries.get(i).get("type").checkjstring());
+            }
+            token = page.arg(2);
+            pages++;
+        } while (!token.isnil());
+
+        Assert.assertEquals(4, pages);
+        Assert.assertEquals(Arrays.asList("a:dir", "a/1:file", "a/b:dir", "a/b/2:file", "c:dir", "c/3:file", "d:file", "e:link"), seen);
+    }
+
+    @Test
+    public void testOpenDir() throws Exception {
+        Files.createDirectories(tmp.resolve("sub"));
+        for (int i = 0; i < 5; i++) {
+            Files.write(tmp.resolve("f" + i), new byte[0]);
+        }
+
+        Globals gl = globals();
+        gl.set("base", base);
+        LuaTable lt = gl.load("\nlocal fs = require('path.fs')" +
+                "\nlocal d = fs.opendir(base)" +
+                "\nlocal t, res, batches = {}, {}, 0" +
+                "\nwhile d:read(4, t) > 0 do" +
+                "\n  batches = batches + 1" +
+                "\n  for i = 1, #t.names do res[t.names[i]] = t.types[i] end" +
+                "\nend" +
+                "\nres.batches = batches" +
+                "\nres.last = #t.names" +
+                "\nd:close()" +
+                "\nres.closed = not pcall(d.read, d, 1)" +
+                "\nreturn res", "test.lua").call().checktable();
+
+        Assert.assertEquals(2, lt.get("batches").checkint());
+        Assert.assertEquals(0, lt.get("last").checkint());
+        Assert.assertEquals("dir", lt.get("sub").checkjstring());
+        Assert.assertEquals("file", lt.get("f4").checkjstring());
+        Assert.assertTrue(lt.get("closed").toboolean());
+
+        Assert.assertTrue(fs.get("opendir").invoke(v(base + "/nope")).isnil(1));
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        LuaValue watch = fs.get("watch").call(v(base), v("cd"), LuaValue.TRUE);
+        Assert.assertEquals(0, watch.method("poll", LuaValue.valueOf(0)).checktable().length());
+
+        Files.createDirectories(tmp.resolve("sub/deeper"));
+        Files.write(tmp.resolve("sub/deeper/file"), new byte[1]);
+        Set<String> seen = new HashSet<>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!seen.contains(base + "/sub/deeper/file") && System.currentTimeMillis() < deadline) {
+            LuaTable events = watch.method("poll", LuaValue.valueOf(1)).checktable();
+            for (int i = 1; i <= events.length(); i++) {
+                Assert.assertEquals("create", events.get(i).get("event").checkjstring());
+                seen.add(events.get(i).get("path").checkjstring());
+            }
+        }
+
+        Assert.assertTrue(seen.contains(base + "/sub"));
+        Assert.assertTrue(seen.contains(base + "/sub/deeper/file"));
+
+        watch.method("close");
+        Assert.assertTrue(fs.get("watch").invoke(v(base + "/nope")).isnil(1));
+    }
+
+    @Test
+    public void testWatchOverflow() throws Exception {
+        LuaValue watch = fs.get("watch").call(v(base), v("cd"), LuaValue.TRUE);
+
+        //More events than the watch service queues per directory, the creation of new is likely lost
+        for (int i = 0; i < 600; i++) {
+            Files.write(tmp.resolve("f" + i), new byte[0]);
+        }
+        Files.createDirectories(tmp.resolve("new/deep"));
+
+        boolean overflow = false;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!overflow && System.currentTimeMillis() < deadline) {
+            LuaTable events = watch.method("poll", LuaValue.valueOf(1)).checktable();
+            for (int i = 1; i <= events.length(); i++) {
+                overflow |= "overflow".equals(events.get(i).get("event").checkjstring());
+            }
+        }
+        Assert.assertTrue(overflow);
+
+        //The rescan after the overflow registered the directories it missed
+        Files.write(tmp.resolve("new/deep/file"), new byte[0]);
+        Set<String> seen = new HashSet<>();
+        deadline = System.currentTimeMillis() + 10000;
+        while (!seen.contains(base + "/new/deep/file") && System.currentTimeMillis() < deadline) {
+            LuaTable events = watch.method("poll", LuaValue.valueOf(1)).checktable();
+            for (int i = 1; i <= events.length(); i++) {
+                seen.add(events.get(i).get("path").checkjstring());
+            }
+        }
+        Assert.assertTrue(seen.contains(base + "/new/deep/file"));
+
+        watch.method("close");
+    }
+
     @Test
     public void testSlash() {
         testMatch("a/b/c","a/b/c", true);
@@ -0,0 +1,100 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of luajlpath.
+//
+// luajlpath is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// luajlpath is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of luajlpath.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlpath;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Copies a generated sparse file with fs.copy and with Files.copy and prints the time both took.
+ * Usage: LuajLPathSparseCopyBenchmark [size in MiB, default 2048] [data regions, default 16]
+ */
+public class LuajLPathSparseCopyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 2048L) << 20;
+        int regions = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        Path dir = Files.createTempDirectory("luajlpath-sparse");
+        Path source = dir.resolve("source.img");
+        Path lpathTarget = dir.resolve("lpath.img");
+        Path nioTarget = dir.resolve("nio.img");
+
+        try {
+            generate(source, size, regions);
+
+            Globals globals = JsePlatform.standardGlobals();
+            globals.load(new LuajLPathLib());
+            LuaValue copy = globals.get("package").get("loaded").get("path.fs").get("copy");
+
+            long start = System.nanoTime();
+            Varargs result = copy.invoke(LuaValue.valueOf(source.toString()), LuaValue.valueOf(lpathTarget.toString()));
+            long lpathTime = System.nanoTime() - start;
+
+            if (!result.arg1().toboolean()) {
+                throw new IllegalStateException(result.arg(2).tojstring());
+            }
+
+            start = System.nanoTime();
+            Files.copy(source, nioTarget, StandardCopyOption.REPLACE_EXISTING);
+            long nioTime = System.nanoTime() - start;
+
+            System.out.println("size:       " + size + " bytes, " + regions + " data regions");
+            System.out.println("fs.copy:    " + (lpathTime / 1000000) + " ms, strategy=" + result.arg(2).tojstring() +
+                    " bytes=" + result.arg(3).tolong() + " skipped=" + result.arg(4).tolong());
+            System.out.println("Files.copy: " + (nioTime / 1000000) + " ms");
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(lpathTarget);
+            Files.deleteIfExists(nioTarget);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Creates a file of the given size that only has regions blocks of 1 MiB random data spread evenly across it.
+     */
+    private static void generate(Path file, long size, int regions) throws Exception {
+        byte[] data = new byte[1 << 20];
+        new Random(0).nextBytes(data);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            long step = size / Math.max(regions, 1);
+            for (int i = 0; i < regions; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) Math.min(data.length, size - i * step));
+                long pos = i * step;
+                while (buffer.hasRemaining()) {
+                    pos += channel.write(buffer, pos);
+                }
+            }
+        }
+    }
+}